@@ -0,0 +1,120 @@
+import com.fastkeyboard.TranscriptionResponse;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+/**
+ * Compares the old readLine + indexOf extraction with TranscriptionResponse on
+ * synthetic verbose_json responses. Plain JVM, not part of the APK:
+ *
+ *   javac -d /tmp/bench src/com/fastkeyboard/JsonPullParser.java \
+ *       src/com/fastkeyboard/TranscriptionResponse.java bench/JsonParseBench.java
+ *   java -cp /tmp/bench JsonParseBench
+ */
+public class JsonParseBench {
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int ITERATIONS = 500;
+
+    public static void main(String[] args) throws IOException {
+        for (int segments : new int[]{10, 200, 2000}) {
+            byte[] json = verboseJson(segments).getBytes("UTF-8");
+            String expected = expectedText(segments);
+
+            String oldText = oldParse(json);
+            String newText = TranscriptionResponse.parse(new ByteArrayInputStream(json)).getText();
+            System.out.println(String.format(Locale.US, "%d segments, %d KB: old parser %s, new parser %s",
+                    segments, json.length / 1024,
+                    expected.equals(oldText) ? "correct" : "WRONG (" + oldText.length() + " of " + expected.length() + " chars)",
+                    expected.equals(newText) ? "correct" : "WRONG"));
+
+            report("  old", measure(json, true));
+            report("  new", measure(json, false));
+        }
+    }
+
+    private static long[] measure(byte[] json, boolean old) throws IOException {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int sink = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink += run(json, old).length();
+        }
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += run(json, old).length();
+        }
+        long nanos = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        if (sink == 42) System.out.print("");
+        return new long[]{nanos / ITERATIONS, allocated / ITERATIONS};
+    }
+
+    private static String run(byte[] json, boolean old) throws IOException {
+        return old ? oldParse(json) : TranscriptionResponse.parse(new ByteArrayInputStream(json)).getText();
+    }
+
+    private static void report(String label, long[] result) {
+        System.out.println(String.format(Locale.US, "%s: %8.1f us/op, %8.1f KB allocated/op",
+                label, result[0] / 1000.0, result[1] / 1024.0));
+    }
+
+    // The pre-parser WhisperAPI code path
+    private static String oldParse(byte[] body) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body)));
+        StringBuilder response = new StringBuilder();
+        String line;
+        while ((line = in.readLine()) != null) {
+            response.append(line);
+        }
+        in.close();
+        String json = response.toString();
+        int textIndex = json.indexOf("\"text\"");
+        if (textIndex == -1) return null;
+        int colonIndex = json.indexOf(":", textIndex);
+        int startQuote = json.indexOf("\"", colonIndex);
+        int endQuote = json.indexOf("\"", startQuote + 1);
+        if (startQuote != -1 && endQuote != -1) {
+            return json.substring(startQuote + 1, endQuote);
+        }
+        return null;
+    }
+
+    private static String sentence(int i) {
+        return " Segment " + i + " said \"caf\u00e9\" then paused.\nNext line";
+    }
+
+    private static String expectedText(int segments) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < segments; i++) {
+            text.append(sentence(i));
+        }
+        return text.toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n").replace("\u00e9", "\\u00e9");
+    }
+
+    private static String verboseJson(int segments) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"task\": \"transcribe\",\n  \"language\": \"english\",\n  \"duration\": ")
+            .append(segments * 4.2).append(",\n  \"text\": \"").append(escape(expectedText(segments)))
+            .append("\",\n  \"segments\": [\n");
+        for (int i = 0; i < segments; i++) {
+            if (i > 0) json.append(",\n");
+            json.append("    {\"id\": ").append(i).append(", \"seek\": ").append(i * 420)
+                .append(", \"start\": ").append(i * 4.2).append(", \"end\": ").append(i * 4.2 + 4.1)
+                .append(", \"text\": \"").append(escape(sentence(i)))
+                .append("\", \"tokens\": [50364, 1681, 4084, 281, 264, 1319, 13, 50514]")
+                .append(", \"temperature\": 0.0, \"avg_logprob\": -0.2123, \"compression_ratio\": 1.35")
+                .append(", \"no_speech_prob\": 0.0012}");
+        }
+        json.append("\n  ]\n}\n");
+        return json.toString();
+    }
+}
@@ -44,6 +44,33 @@ $JAVA_HOME/bin/javac --release=8 \
   src/com/fastkeyboard/VoiceKeyboard.java \
   src/com/fastkeyboard/WhisperAPI.java \
   src/com/fastkeyboard/AudioRecorder.java \
+  src/com/fastkeyboard/PcmRecorder.java \
+  src/com/fastkeyboard/PcmRingBuffer.java \
+  src/com/fastkeyboard/WavFormat.java \
+  src/com/fastkeyboard/RecordingSession.java \
+  src/com/fastkeyboard/SilenceTrimmer.java \
+  src/com/fastkeyboard/VoiceActivityDetector.java \
+  src/com/fastkeyboard/Endpointer.java \
+  src/com/fastkeyboard/DictationSegmenter.java \
+  src/com/fastkeyboard/AudioQualityAnalyzer.java \
+  src/com/fastkeyboard/ParallelTranscriber.java \
+  src/com/fastkeyboard/EncodingStats.java \
+  src/com/fastkeyboard/LevelMeter.java \
+  src/com/fastkeyboard/RecordingSink.java \
+  src/com/fastkeyboard/RecordingJournal.java \
+  src/com/fastkeyboard/LatencyTracer.java \
+  src/com/fastkeyboard/TaskScheduler.java \
+  src/com/fastkeyboard/ConnectionManager.java \
+  src/com/fastkeyboard/MultipartBody.java \
+  src/com/fastkeyboard/JsonPullParser.java \
+  src/com/fastkeyboard/TranscriptionResponse.java \
+  src/com/fastkeyboard/RequestPolicy.java \
+  src/com/fastkeyboard/TranscriptionQueue.java \
+  src/com/fastkeyboard/TranscriptCache.java \
+  src/com/fastkeyboard/ServerSentEvents.java \
+  src/com/fastkeyboard/TranscriptionEngine.java \
+  src/com/fastkeyboard/OpenAITranscriptionEngine.java \
+  src/com/fastkeyboard/TranscriptionRouter.java \
   src/com/fastkeyboard/ChatGPTAPI.java \
   build/com/fastkeyboard/R.java
 if [ $? -ne 0 ]; then
@@ -0,0 +1,190 @@
+package com.fastkeyboard;
+
+import java.util.Locale;
+
+/**
+ * Streaming check of whether a recording is worth transcribing: how much of it is
+ * speech, how much is clipped, and how far speech stands above the background.
+ * Accidental taps and pocket recordings fail here instead of coming back from the
+ * API as hallucinated text.
+ *
+ * Fed the untrimmed PCM on the file writer thread, so the numbers are ready the
+ * moment the recording stops. Not thread-safe.
+ */
+public class AudioQualityAnalyzer {
+    private static final int FRAME_MS = 20;
+    // Samples this close to full scale count as clipped
+    private static final int CLIP_LEVEL = 32000;
+
+    // Less speech than a short word is an accidental tap
+    private static final long MIN_SPEECH_MS = 250;
+    // Below this the "speech" is just the loudest noise
+    private static final double REJECT_SNR_DB = 3;
+    private static final double WARN_SNR_DB = 10;
+    private static final double WARN_CLIPPING_RATIO = 0.01;
+    private static final double WARN_SPEECH_RATIO = 0.1;
+    // The background is the level of the quietest tenth of frames
+    private static final double NOISE_PERCENTILE = 0.1;
+    // Frame levels in 1 dB steps; 16-bit full scale is about 90 dB
+    private static final int LEVEL_BINS = 91;
+
+    public enum Verdict { OK, WARN, REJECT }
+
+    private final int sampleRate;
+    private final VoiceActivityDetector vad = new VoiceActivityDetector();
+    private final short[] frame;
+    private int frameFill = 0;
+
+    private long samples = 0;
+    private long clippedSamples = 0;
+    private long frames = 0;
+    private long speechFrames = 0;
+    private long voicedFrames = 0;
+    private double speechEnergy = 0;
+    private final long[] levelHistogram = new long[LEVEL_BINS];
+
+    public AudioQualityAnalyzer(int sampleRate) {
+        this.sampleRate = sampleRate;
+        frame = new short[sampleRate * FRAME_MS / 1000];
+    }
+
+    public void write(short[] src, int offset, int length) {
+        samples += length;
+        while (length > 0) {
+            int count = Math.min(length, frame.length - frameFill);
+            System.arraycopy(src, offset, frame, frameFill, count);
+            frameFill += count;
+            offset += count;
+            length -= count;
+            if (frameFill == frame.length) {
+                analyzeFrame(frameFill);
+                frameFill = 0;
+            }
+        }
+    }
+
+    /** Classifies any partial last frame and returns the result. */
+    public Report finish() {
+        if (frameFill > 0) {
+            analyzeFrame(frameFill);
+            frameFill = 0;
+        }
+
+        double speechRatio = frames > 0 ? (double) speechFrames / frames : 0;
+        double clippingRatio = samples > 0 ? (double) clippedSamples / samples : 0;
+        double snrDb = 0;
+        if (voicedFrames > 0) {
+            double speech = speechEnergy / voicedFrames;
+            // Not the detector's pause frames: its floor starts at the first frame, so when
+            // the user talks straight away the first words are called background
+            snrDb = 10 * Math.log10(speech / Math.max(quietestLevel(), 1));
+        }
+        long speechMillis = speechFrames * FRAME_MS;
+        return new Report(WavFormat.samplesToMillis(samples, sampleRate), speechMillis,
+                speechRatio, clippingRatio, snrDb);
+    }
+
+    private void analyzeFrame(int length) {
+        for (int i = 0; i < length; i++) {
+            int sample = frame[i];
+            if (sample >= CLIP_LEVEL || sample <= -CLIP_LEVEL) {
+                clippedSamples++;
+            }
+        }
+        boolean speech = vad.isSpeech(frame, 0, length);
+        double meanSquare = vad.getLastRms() * vad.getLastRms();
+        frames++;
+        int level = (int) (10 * Math.log10(Math.max(meanSquare, 1)));
+        levelHistogram[Math.min(level, LEVEL_BINS - 1)]++;
+        if (speech) {
+            speechFrames++;
+            // Hangover frames are the quiet tails of words; they count as speech time, not speech power
+            if (vad.wasLastFrameVoiced()) {
+                voicedFrames++;
+                speechEnergy += meanSquare;
+            }
+        }
+    }
+
+    // Mean power of the level bin holding the NOISE_PERCENTILE quietest frame
+    private double quietestLevel() {
+        long target = (long) Math.ceil(frames * NOISE_PERCENTILE);
+        long seen = 0;
+        for (int level = 0; level < LEVEL_BINS; level++) {
+            seen += levelHistogram[level];
+            if (seen >= target) {
+                return Math.pow(10, (level + 0.5) / 10);
+            }
+        }
+        return Math.pow(10, LEVEL_BINS / 10.0);
+    }
+
+    /**
+     * Quality of one recording. Immutable, so it can be handed from the writer
+     * thread to the UI through {@link RecordingSession}.
+     */
+    public static class Report {
+        private final long durationMillis;
+        private final long speechMillis;
+        private final double speechRatio;
+        private final double clippingRatio;
+        private final double snrDb;
+
+        Report(long durationMillis, long speechMillis, double speechRatio, double clippingRatio, double snrDb) {
+            this.durationMillis = durationMillis;
+            this.speechMillis = speechMillis;
+            this.speechRatio = speechRatio;
+            this.clippingRatio = clippingRatio;
+            this.snrDb = snrDb;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        public long getSpeechMillis() {
+            return speechMillis;
+        }
+
+        /** Fraction of 20 ms frames the detector called speech. */
+        public double getSpeechRatio() {
+            return speechRatio;
+        }
+
+        /** Fraction of samples at or near full scale. */
+        public double getClippingRatio() {
+            return clippingRatio;
+        }
+
+        /** Mean speech power over the level of the quietest frames, in dB; 0 when there was no speech. */
+        public double getSnrDb() {
+            return snrDb;
+        }
+
+        public Verdict getVerdict() {
+            if (speechMillis < MIN_SPEECH_MS || snrDb < REJECT_SNR_DB) {
+                return Verdict.REJECT;
+            }
+            if (clippingRatio > WARN_CLIPPING_RATIO || snrDb < WARN_SNR_DB || speechRatio < WARN_SPEECH_RATIO) {
+                return Verdict.WARN;
+            }
+            return Verdict.OK;
+        }
+
+        /** Short reason for a WARN or REJECT verdict, suitable for a toast. */
+        public String describeProblem() {
+            if (speechMillis < MIN_SPEECH_MS) return "No speech detected";
+            if (snrDb < REJECT_SNR_DB) return "Too noisy to transcribe";
+            if (clippingRatio > WARN_CLIPPING_RATIO) return "Audio is clipping, speak further from the mic";
+            if (snrDb < WARN_SNR_DB) return "Noisy audio, results may be poor";
+            if (speechRatio < WARN_SPEECH_RATIO) return "Very little speech in the recording";
+            return "Audio OK";
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: speech %.0f%% (%d ms), clipping %.2f%%, SNR %.1f dB",
+                    getVerdict(), speechRatio * 100, speechMillis, clippingRatio * 100, snrDb);
+        }
+    }
+}
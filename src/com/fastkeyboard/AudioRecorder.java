@@ -1,16 +1,35 @@
 package com.fastkeyboard;
 
 import android.media.MediaRecorder;
+import android.util.Log;
 import java.io.File;
 import java.io.IOException;
 
 public class AudioRecorder {
+    private static final String TAG = "VoiceKeyboard";
+    public static final String ENGINE_MEDIA_RECORDER = "MediaRecorder";
+    public static final String ENGINE_AUDIO_RECORD = "AudioRecord";
+    // Opus voice mode is transparent for speech recognition at a fraction of AAC's size
+    private static final int OPUS_VOICE_BITRATE = 24000;
+    // HE-AAC stand-in for devices without the Opus encoder (API < 29)
+    private static final int HE_AAC_VOICE_BITRATE = 32000;
+
     private MediaRecorder mediaRecorder;
+    private final PcmRecorder pcmRecorder = new PcmRecorder();
+    private String engine = ENGINE_MEDIA_RECORDER;
+    private RecordingSession session;
     private File outputFile;
     private boolean isRecording = false;
     private int sampleRate = 16000;
     private int channels = 1;  // 1 = mono, 2 = stereo
     private int bitRate = 128000;
+    private boolean voiceCodec = false;
+
+    // One MediaRecorder prepared ahead of the next start; guarded by prepareLock
+    private final Object prepareLock = new Object();
+    private MediaRecorder preparedRecorder;
+    private File preparedFile;
+    private String preparedConfig;
 
     public interface RecordingCallback {
         void onRecordingStarted();
@@ -19,7 +38,12 @@ public class AudioRecorder {
     }
 
     public void setQuality(String quality) {
-        if (quality.equals("High")) {
+        voiceCodec = false;
+        if (quality.equals("Voice")) {
+            sampleRate = 16000;
+            channels = 1;
+            voiceCodec = true;
+        } else if (quality.equals("High")) {
             sampleRate = 44100;
             channels = 2;  // Stereo
             bitRate = 256000;
@@ -32,39 +56,253 @@ public class AudioRecorder {
             channels = 1;  // Mono
             bitRate = 128000;
         }
+        pcmRecorder.setSampleRate(sampleRate);
+    }
+
+    /**
+     * Selects the capture engine used by the next {@link #startRecording} call.
+     * AudioRecord captures mono PCM into a ring buffer and produces a .wav file;
+     * MediaRecorder produces an AAC .m4a file, or Opus .ogg for the Voice tier.
+     */
+    public void setEngine(String engine) {
+        if (isRecording()) return;
+        this.engine = ENGINE_AUDIO_RECORD.equals(engine) ? ENGINE_AUDIO_RECORD : ENGINE_MEDIA_RECORDER;
+    }
+
+    /**
+     * Drop leading/trailing silence and shorten long pauses before upload.
+     * Only the AudioRecord engine has PCM to trim.
+     */
+    public void setTrimSilence(boolean trimSilence) {
+        pcmRecorder.setTrimSilence(trimSilence);
+    }
+
+    /**
+     * Keep AudioRecord recordings in memory up to {@code bytes} before spilling to
+     * the cache dir; 0 always writes the file. MediaRecorder needs a seekable file for
+     * its MP4/Ogg container and always records to disk.
+     */
+    public void setMemorySinkLimit(long bytes) {
+        pcmRecorder.setMemorySinkLimit(bytes);
+    }
+
+    /**
+     * Journal AudioRecord recordings under {@code filesDir} so they can be recovered
+     * after the process is killed; null turns it off. See {@link RecordingJournal}.
+     */
+    public void setJournalDir(File filesDir) {
+        pcmRecorder.setJournalDir(filesDir);
+    }
+
+    /**
+     * Ends recordings automatically on trailing silence. Needs the AudioRecord engine;
+     * pass null for manual stop.
+     */
+    public void setEndpointer(Endpointer endpointer) {
+        pcmRecorder.setEndpointer(endpointer);
+    }
+
+    /** Unpaused recording time of the current or last session, 0 before the first. */
+    public long getActiveMillis() {
+        RecordingSession current = session;
+        return current != null ? current.getActiveMillis() : 0;
+    }
+
+    /**
+     * Measurements for the current or most recent recording, or null before the first one.
+     */
+    public RecordingSession getLastSession() {
+        return session;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    /**
+     * Reader over the current recording's PCM, from its first sample (including
+     * pre-roll) until stop. Only available while recording with the AudioRecord engine.
+     */
+    public PcmRingBuffer.Reader newRecordingReader() {
+        return engine.equals(ENGINE_AUDIO_RECORD) ? pcmRecorder.newRecordingReader() : null;
+    }
+
+    /**
+     * Keeps the microphone open so the next recording starts {@code preRollMs} before
+     * the tap. Only the AudioRecord engine can prepend pre-roll; returns false otherwise
+     * or if the microphone is unavailable.
+     */
+    public boolean startPreRoll(int preRollMs) {
+        if (!engine.equals(ENGINE_AUDIO_RECORD)) return false;
+        return pcmRecorder.startPreRoll(preRollMs);
+    }
+
+    public void stopPreRoll() {
+        pcmRecorder.stopPreRoll();
+    }
+
+    /**
+     * Creates and prepares the next recorder on a background thread, so the following
+     * {@link #startRecording} only has to call {@code start()}. Call when the keyboard
+     * view is created and after each recording; a prepared recorder whose settings no
+     * longer match is discarded at start.
+     */
+    public void prepareNext(final File outputDir) {
+        if (isRecording()) return;
+        if (engine.equals(ENGINE_AUDIO_RECORD)) {
+            pcmRecorder.prepareNext();
+            return;
+        }
+
+        final String config = mediaRecorderConfig(outputDir);
+        TaskScheduler.background(TaskScheduler.Priority.NORMAL, "prepare recorder", new Runnable() {
+            @Override
+            public void run() {
+                synchronized (prepareLock) {
+                    if (preparedRecorder != null && config.equals(preparedConfig)) return;
+                    discardPreparedLocked();
+                    File file = newOutputFile(outputDir);
+                    try {
+                        preparedRecorder = createMediaRecorder(file);
+                        preparedFile = file;
+                        preparedConfig = config;
+                    } catch (IOException | RuntimeException e) {
+                        Log.w(TAG, "AudioRecorder: background prepare failed: " + e.getMessage());
+                        file.delete();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Releases any recorder prepared ahead of time, e.g. when the keyboard is hidden.
+     */
+    public void discardPrepared() {
+        synchronized (prepareLock) {
+            discardPreparedLocked();
+        }
+        pcmRecorder.discardPrepared();
     }
 
     public void startRecording(File outputDir, RecordingCallback callback) {
+        if (engine.equals(ENGINE_AUDIO_RECORD)) {
+            session = new RecordingSession(engine, sampleRate, "WAV " + (sampleRate / 1000) + "kHz");
+            pcmRecorder.startRecording(outputDir, session, callback);
+            return;
+        }
+
+        session = new RecordingSession(engine, sampleRate, formatLabel());
+        boolean prepared = false;
+
         try {
-            // Create output file - use .m4a format (better compatibility with Whisper)
-            outputFile = new File(outputDir, "voice_" + System.currentTimeMillis() + ".m4a");
-
-            // Initialize MediaRecorder
-            mediaRecorder = new MediaRecorder();
-            mediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-            mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-            mediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
-            mediaRecorder.setAudioEncodingBitRate(bitRate);
-            mediaRecorder.setAudioSamplingRate(sampleRate);
-            mediaRecorder.setAudioChannels(channels);
-            mediaRecorder.setOutputFile(outputFile.getAbsolutePath());
-
-            mediaRecorder.prepare();
+            String config = mediaRecorderConfig(outputDir);
+            synchronized (prepareLock) {
+                if (preparedRecorder != null && config.equals(preparedConfig)) {
+                    mediaRecorder = preparedRecorder;
+                    outputFile = preparedFile;
+                    preparedRecorder = null;
+                    preparedFile = null;
+                    preparedConfig = null;
+                    prepared = true;
+                } else {
+                    discardPreparedLocked();
+                }
+            }
+
+            if (!prepared) {
+                outputFile = newOutputFile(outputDir);
+                mediaRecorder = createMediaRecorder(outputFile);
+            }
             mediaRecorder.start();
+            session.markFirstSample();
+            session.clockResumed();
+            Log.d(TAG, "AudioRecorder: MediaRecorder started " + session.getStartLatencyMillis()
+                    + " ms after request (" + (prepared ? "prepared" : "cold") + ")");
 
             isRecording = true;
             if (callback != null) {
                 callback.onRecordingStarted();
             }
-        } catch (IOException e) {
+        } catch (IOException | RuntimeException e) {
             isRecording = false;
+            if (mediaRecorder != null) {
+                mediaRecorder.release();
+                mediaRecorder = null;
+            }
             if (callback != null) {
                 callback.onError("Failed to start recording: " + e.getMessage());
             }
         }
     }
 
+    private boolean useOpus() {
+        return voiceCodec && android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.Q;
+    }
+
+    private int encoderBitRate() {
+        return !voiceCodec ? bitRate : useOpus() ? OPUS_VOICE_BITRATE : HE_AAC_VOICE_BITRATE;
+    }
+
+    private String formatLabel() {
+        return (useOpus() ? "Opus " : voiceCodec ? "HE-AAC " : "AAC ") + (encoderBitRate() / 1000) + "kbps";
+    }
+
+    // Everything a prepared MediaRecorder was configured with
+    private String mediaRecorderConfig(File outputDir) {
+        return formatLabel() + "|" + sampleRate + "|" + channels + "|" + outputDir.getAbsolutePath();
+    }
+
+    private File newOutputFile(File outputDir) {
+        // .ogg for Opus, otherwise .m4a (better compatibility with Whisper)
+        return new File(outputDir, "voice_" + System.currentTimeMillis() + (useOpus() ? ".ogg" : ".m4a"));
+    }
+
+    private MediaRecorder createMediaRecorder(File file) throws IOException {
+        MediaRecorder recorder = new MediaRecorder();
+        try {
+            recorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+            if (useOpus()) {
+                recorder.setOutputFormat(MediaRecorder.OutputFormat.OGG);
+                recorder.setAudioEncoder(MediaRecorder.AudioEncoder.OPUS);
+            } else {
+                recorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+                recorder.setAudioEncoder(voiceCodec ? MediaRecorder.AudioEncoder.HE_AAC : MediaRecorder.AudioEncoder.AAC);
+            }
+            recorder.setAudioEncodingBitRate(encoderBitRate());
+            recorder.setAudioSamplingRate(sampleRate);
+            recorder.setAudioChannels(channels);
+            recorder.setOutputFile(file.getAbsolutePath());
+            recorder.prepare();
+            return recorder;
+        } catch (IOException | RuntimeException e) {
+            recorder.release();
+            throw e;
+        }
+    }
+
+    private void discardPreparedLocked() {
+        if (preparedRecorder != null) {
+            preparedRecorder.release();
+            preparedRecorder = null;
+        }
+        if (preparedFile != null) {
+            preparedFile.delete();
+            preparedFile = null;
+        }
+        preparedConfig = null;
+    }
+
     public void stopRecording(RecordingCallback callback) {
+        if (engine.equals(ENGINE_AUDIO_RECORD)) {
+            pcmRecorder.stopRecording(callback);
+            return;
+        }
+
         if (!isRecording || mediaRecorder == null) {
             if (callback != null) {
                 callback.onError("Not currently recording");
@@ -73,10 +311,14 @@ public class AudioRecorder {
         }
 
         try {
+            long traceFinalize = LatencyTracer.begin();
             mediaRecorder.stop();
             mediaRecorder.release();
+            LatencyTracer.end("file finalize", traceFinalize);
             mediaRecorder = null;
             isRecording = false;
+            session.clockPaused();
+            session.setCapturedMillis(session.getActiveMillis());
 
             if (callback != null) {
                 callback.onRecordingStopped(outputFile);
@@ -89,35 +331,55 @@ public class AudioRecorder {
         }
     }
 
-    public void pauseRecording() {
-        if (isRecording && mediaRecorder != null) {
-            try {
-                if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.N) {
-                    mediaRecorder.pause();
-                }
-            } catch (Exception e) {
-                // Ignore
-            }
+    /**
+     * Pauses capture. Returns false, leaving the recording running, when it can't be
+     * paused; the session's active time stops advancing only on success.
+     */
+    public boolean pauseRecording() {
+        if (engine.equals(ENGINE_AUDIO_RECORD)) {
+            return pcmRecorder.pauseRecording();
+        }
+
+        if (!isRecording || mediaRecorder == null) {
+            return false;
+        }
+        try {
+            mediaRecorder.pause();
+            session.clockPaused();
+            return true;
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "AudioRecorder: MediaRecorder pause failed", e);
+            return false;
         }
     }
 
-    public void resumeRecording() {
-        if (isRecording && mediaRecorder != null) {
-            try {
-                if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.N) {
-                    mediaRecorder.resume();
-                }
-            } catch (Exception e) {
-                // Ignore
-            }
+    public boolean resumeRecording() {
+        if (engine.equals(ENGINE_AUDIO_RECORD)) {
+            return pcmRecorder.resumeRecording();
+        }
+
+        if (!isRecording || mediaRecorder == null) {
+            return false;
+        }
+        try {
+            mediaRecorder.resume();
+            session.clockResumed();
+            return true;
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "AudioRecorder: MediaRecorder resume failed", e);
+            return false;
         }
     }
 
     public boolean isRecording() {
-        return isRecording;
+        return isRecording || pcmRecorder.isRecording();
     }
 
     public int getMaxAmplitude() {
+        if (engine.equals(ENGINE_AUDIO_RECORD)) {
+            return pcmRecorder.getMaxAmplitude();
+        }
+
         if (mediaRecorder != null && isRecording) {
             try {
                 return mediaRecorder.getMaxAmplitude();
@@ -128,11 +390,24 @@ public class AudioRecorder {
         return 0;
     }
 
+    /**
+     * Frame-accurate input level for the UI, or null with the MediaRecorder engine,
+     * which only offers {@link #getMaxAmplitude()}.
+     */
+    public LevelMeter getLevelMeter() {
+        return engine.equals(ENGINE_AUDIO_RECORD) ? pcmRecorder.getLevelMeter() : null;
+    }
+
     public File getOutputFile() {
+        if (engine.equals(ENGINE_AUDIO_RECORD)) {
+            return pcmRecorder.getOutputFile();
+        }
         return outputFile;
     }
 
     public void release() {
+        discardPrepared();
+        pcmRecorder.release();
         if (mediaRecorder != null) {
             try {
                 if (isRecording) {
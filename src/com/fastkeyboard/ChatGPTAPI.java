@@ -1,22 +1,35 @@
 package com.fastkeyboard;
 
 import android.content.Context;
-import android.net.ConnectivityManager;
-import android.net.Network;
+import android.util.Log;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
 
 public class ChatGPTAPI {
+    private static final String TAG = "VoiceKeyboard";
+    public static final String CHAT_URL = "https://api.openai.com/v1/chat/completions";
+
     public interface ChatGPTCallback {
         void onSuccess(String response);
         void onError(String error);
     }
 
+    /**
+     * Passing one of these requests a streamed completion: {@link #onDelta} gets each
+     * piece of text as the model produces it, then {@link #onSuccess} the whole text.
+     * Both are called on a network thread.
+     */
+    public interface StreamingCallback extends ChatGPTCallback {
+        void onDelta(String delta);
+    }
+
     public static void improveText(final Context context, final String apiKey, final String text, final ChatGPTCallback callback) {
         String prompt = "Please improve this text by fixing any grammar issues and making it more professional. Return only the improved text without any additional words or explanations:\n\n" + text;
         callAPI(context, apiKey, prompt, callback);
@@ -28,33 +41,13 @@ public class ChatGPTAPI {
     }
 
     private static void callAPI(final Context context, final String apiKey, final String prompt, final ChatGPTCallback callback) {
-        new Thread(new Runnable() {
+        TaskScheduler.network(TaskScheduler.Priority.NORMAL, "chat completion", new Runnable() {
             @Override
             public void run() {
-                HttpURLConnection conn = null;
+                final boolean streaming = callback instanceof StreamingCallback;
+                long traceRequest = LatencyTracer.begin();
+                long requestStart = System.currentTimeMillis();
                 try {
-                    URL url = new URL("https://api.openai.com/v1/chat/completions");
-
-                    // Use active network binding for DNS resolution
-                    ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-                    Network activeNetwork = null;
-                    if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
-                        activeNetwork = cm.getActiveNetwork();
-                    }
-
-                    if (activeNetwork != null && android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
-                        conn = (HttpURLConnection) activeNetwork.openConnection(url);
-                    } else {
-                        conn = (HttpURLConnection) url.openConnection();
-                    }
-
-                    conn.setRequestMethod("POST");
-                    conn.setRequestProperty("Content-Type", "application/json");
-                    conn.setRequestProperty("Authorization", "Bearer " + apiKey);
-                    conn.setDoOutput(true);
-                    conn.setConnectTimeout(30000);
-                    conn.setReadTimeout(60000);
-
                     // Create JSON request body
                     JSONObject jsonBody = new JSONObject();
                     jsonBody.put("model", "gpt-4o-mini");
@@ -67,16 +60,45 @@ public class ChatGPTAPI {
 
                     jsonBody.put("messages", messages);
                     jsonBody.put("temperature", 0.3);
-
-                    // Write request body
-                    OutputStream os = conn.getOutputStream();
-                    os.write(jsonBody.toString().getBytes("UTF-8"));
-                    os.flush();
-                    os.close();
+                    if (streaming) {
+                        jsonBody.put("stream", true);
+                    }
+                    final byte[] requestBody = jsonBody.toString().getBytes("UTF-8");
+
+                    HttpURLConnection conn = RequestPolicy.CHAT.execute("chat completion",
+                            new RequestPolicy.Request<HttpURLConnection>() {
+                        @Override
+                        public HttpURLConnection run(RequestPolicy.Attempt attempt) throws IOException {
+                            // Shared keep-alive pool; often already warmed when the keyboard opened
+                            HttpURLConnection conn = attempt.configure(ConnectionManager.open(context, CHAT_URL));
+
+                            conn.setRequestMethod("POST");
+                            conn.setRequestProperty("Content-Type", "application/json");
+                            conn.setRequestProperty("Authorization", "Bearer " + apiKey);
+                            conn.setDoOutput(true);
+
+                            // Write request body
+                            OutputStream os = conn.getOutputStream();
+                            os.write(requestBody);
+                            os.flush();
+                            os.close();
+                            attempt.sent();
+
+                            attempt.checkStatus(conn, conn.getResponseCode());
+                            return conn;
+                        }
+                    });
 
                     // Check response code
                     int responseCode = conn.getResponseCode();
-                    if (responseCode == HttpURLConnection.HTTP_OK) {
+                    if (responseCode == HttpURLConnection.HTTP_OK && streaming) {
+                        String content = readStream(conn, (StreamingCallback) callback, traceRequest, requestStart);
+                        if (content.trim().isEmpty()) {
+                            callback.onError("No response from API");
+                        } else {
+                            callback.onSuccess(content.trim());
+                        }
+                    } else if (responseCode == HttpURLConnection.HTTP_OK) {
                         // Read response
                         BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
                         StringBuilder response = new StringBuilder();
@@ -120,12 +142,42 @@ public class ChatGPTAPI {
                     if (callback != null) {
                         callback.onError("Error: " + e.getMessage());
                     }
-                } finally {
-                    if (conn != null) {
-                        conn.disconnect();
-                    }
                 }
+                // No disconnect(): the streams are fully read and closed, so the socket
+                // goes back to the pool for the next request
+            }
+        });
+    }
+
+    // Each event carries {"choices":[{"delta":{"content":"..."}}]}; the last is [DONE]
+    private static String readStream(HttpURLConnection conn, StreamingCallback callback, long traceRequest,
+                                     long requestStart) throws IOException, JSONException {
+        StringBuilder content = new StringBuilder();
+        InputStream in = conn.getInputStream();
+        try {
+            ServerSentEvents events = new ServerSentEvents(in);
+            String data;
+            while ((data = events.next()) != null) {
+                if (data.equals("[DONE]")) break;
+                JSONArray choices = new JSONObject(data).optJSONArray("choices");
+                if (choices == null || choices.length() == 0) continue;
+                JSONObject delta = choices.getJSONObject(0).optJSONObject("delta");
+                if (delta == null || delta.isNull("content")) continue;
+                String piece = delta.getString("content");
+                if (piece.isEmpty()) continue;
+                if (content.length() == 0) {
+                    LatencyTracer.end("chat first token", traceRequest);
+                    Log.d(TAG, "ChatGPTAPI: first token after " + (System.currentTimeMillis() - requestStart) + " ms");
+                }
+                content.append(piece);
+                callback.onDelta(piece);
             }
-        }).start();
+        } finally {
+            // Past [DONE] to the end, so the connection can be reused
+            ConnectionManager.drain(in);
+        }
+        Log.d(TAG, "ChatGPTAPI: stream complete after " + (System.currentTimeMillis() - requestStart) + " ms, "
+                + content.length() + " chars");
+        return content.toString();
     }
 }
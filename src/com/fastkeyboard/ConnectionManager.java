@@ -0,0 +1,225 @@
+package com.fastkeyboard;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Opens all API connections so they share one keep-alive pool, and warms that pool
+ * when the keyboard is shown.
+ *
+ * Each {@link Network} object carries its own HTTP connection pool, and
+ * {@code getActiveNetwork()} returns a new object every call, so connections opened
+ * through a fresh Network are never reused. This class hands out connections from
+ * one cached Network until the active network actually changes. Callers must read
+ * responses to the end and close the stream without {@code disconnect()}, or the
+ * socket is thrown away.
+ *
+ * Every new TLS socket goes through a counting factory, so
+ * {@link #stats()} can report how many requests skipped the handshake.
+ */
+public class ConnectionManager {
+    private static final String TAG = "VoiceKeyboard";
+    private static final String PREFS_NAME = "VoiceKeyboardPrefs";
+    private static final String KEY_API_URL = "whisper_api_url";
+    // Android's pool keeps idle connections for 5 minutes; re-warming more often is wasted
+    private static final long PREWARM_INTERVAL_MS = 60 * 1000;
+    private static final int PREWARM_TIMEOUT_MS = 10000;
+
+    private static final AtomicLong requests = new AtomicLong();
+    private static final AtomicLong handshakes = new AtomicLong();
+    private static final AtomicLong prewarmHandshakes = new AtomicLong();
+    // Set while a prewarm request runs, so its handshake isn't charged to real requests
+    private static final ThreadLocal<Boolean> warming = new ThreadLocal<>();
+    private static final CountingSocketFactory socketFactory =
+            new CountingSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
+
+    private static Network network;
+    private static long lastPrewarmAt = 0;
+
+    /**
+     * Opens a connection on the active network, reusing a pooled socket to the same
+     * host when one is idle.
+     */
+    public static HttpURLConnection open(Context context, String url) throws IOException {
+        requests.incrementAndGet();
+        return openUncounted(context, url);
+    }
+
+    /**
+     * Starts a TLS handshake with each configured API host in the background, so the
+     * next dictation finds a warm connection. Rate-limited; cheap to call on every
+     * keyboard show.
+     */
+    public static void prewarm(final Context context) {
+        synchronized (ConnectionManager.class) {
+            long now = SystemClock.elapsedRealtime();
+            if (lastPrewarmAt != 0 && now - lastPrewarmAt < PREWARM_INTERVAL_MS) return;
+            lastPrewarmAt = now;
+        }
+
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        final Set<String> urls = new LinkedHashSet<>();
+        String apiUrl = prefs.getString(KEY_API_URL, "");
+        if (!apiUrl.isEmpty()) {
+            urls.add(apiUrl);
+        }
+        urls.add(ChatGPTAPI.CHAT_URL);
+
+        TaskScheduler.network(TaskScheduler.Priority.BACKGROUND, "prewarm connections", new Runnable() {
+            @Override
+            public void run() {
+                Set<String> hosts = new LinkedHashSet<>();
+                for (String url : urls) {
+                    try {
+                        if (!hosts.add(new URL(url).getHost())) continue;
+                        warm(context, url);
+                    } catch (IOException e) {
+                        Log.d(TAG, "ConnectionManager: prewarm of " + url + " failed: " + e.getMessage());
+                    }
+                }
+            }
+        });
+    }
+
+    /** e.g. "12 requests, 3 TLS handshakes, 75% reused, 4 prewarms". */
+    public static String stats() {
+        long total = requests.get();
+        if (total == 0) {
+            return "Connections: no requests yet, " + prewarmHandshakes.get() + " prewarms";
+        }
+        long fresh = Math.min(handshakes.get(), total);
+        return String.format(Locale.getDefault(), "Connections: %d requests, %d TLS handshakes, %d%% reused, %d prewarms",
+                total, fresh, (total - fresh) * 100 / total, prewarmHandshakes.get());
+    }
+
+    // A HEAD without credentials: the server answers at once (401/405) and, with no
+    // body to read, the handshaken socket goes straight back to the pool
+    private static void warm(Context context, String url) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        HttpURLConnection conn = openUncounted(context, url);
+        conn.setRequestMethod("HEAD");
+        conn.setConnectTimeout(PREWARM_TIMEOUT_MS);
+        conn.setReadTimeout(PREWARM_TIMEOUT_MS);
+        int code;
+        warming.set(Boolean.TRUE);
+        try {
+            code = conn.getResponseCode();
+        } finally {
+            warming.remove();
+        }
+        InputStream body = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+        if (body != null) {
+            drain(body);
+        }
+        Log.d(TAG, "ConnectionManager: warmed " + conn.getURL().getHost() + " in "
+                + (SystemClock.elapsedRealtime() - start) + " ms (" + code + ")");
+    }
+
+    /** Reads a response body to the end and closes it so its socket can be reused. */
+    public static void drain(InputStream body) throws IOException {
+        byte[] buffer = new byte[4096];
+        try {
+            while (body.read(buffer) != -1) {
+                // discard
+            }
+        } finally {
+            body.close();
+        }
+    }
+
+    private static HttpURLConnection openUncounted(Context context, String url) throws IOException {
+        URL target = new URL(url);
+        Network current = currentNetwork(context);
+        HttpURLConnection conn = current != null
+                ? (HttpURLConnection) current.openConnection(target)
+                : (HttpURLConnection) target.openConnection();
+        if (conn instanceof HttpsURLConnection) {
+            // Always the same factory instance, or the pool would key connections apart
+            ((HttpsURLConnection) conn).setSSLSocketFactory(socketFactory);
+        }
+        return conn;
+    }
+
+    private static synchronized Network currentNetwork(Context context) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        Network active = cm.getActiveNetwork();
+        if (active == null) {
+            Log.w(TAG, "ConnectionManager: no active network, using default routing");
+            network = null;
+        } else if (!active.equals(network)) {
+            // A different network: its pool starts empty, which is correct after a switch
+            network = active;
+        }
+        return network;
+    }
+
+    /** Counts sockets that need a TLS handshake; pooled connections never get here. */
+    private static class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+
+        CountingSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        private static void count() {
+            (warming.get() != null ? prewarmHandshakes : handshakes).incrementAndGet();
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            count();
+            return delegate.createSocket(socket, host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            count();
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            count();
+            return delegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            count();
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            count();
+            return delegate.createSocket(address, port, localAddress, localPort);
+        }
+    }
+}
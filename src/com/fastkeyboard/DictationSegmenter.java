@@ -0,0 +1,164 @@
+package com.fastkeyboard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a long 16-bit mono WAV recording into bounded-length segments, cutting in
+ * the quietest stretch near each boundary so words are not split in half.
+ */
+public class DictationSegmenter {
+    private static final int FRAME_MS = 20;
+    // Energy is averaged over this span when looking for a cut, so a single quiet frame mid-word loses
+    private static final int SMOOTHING_MS = 300;
+
+    private final int maxSegmentMs;
+    private final int minSegmentMs;
+
+    /**
+     * @param maxSegmentMs no segment is longer than this
+     * @param minSegmentMs cuts are searched between min and max, so segments don't get tiny
+     */
+    public DictationSegmenter(int maxSegmentMs, int minSegmentMs) {
+        this.maxSegmentMs = maxSegmentMs;
+        this.minSegmentMs = minSegmentMs;
+    }
+
+    /**
+     * Returns the segment files in order, or a single-element list with the original
+     * file when it is short enough or not a PCM WAV this class can read.
+     *
+     * @param outputDir where the segments are written; never the recording's own
+     *                  directory, which may be a queued item whose every file is read back
+     */
+    public List<File> split(File wavFile, File outputDir) throws IOException {
+        List<File> segments = new ArrayList<>();
+        int sampleRate = WavFormat.readMonoPcmSampleRate(wavFile);
+        long dataBytes = wavFile.length() - WavFormat.HEADER_SIZE;
+        long totalSamples = dataBytes / 2;
+
+        if (sampleRate <= 0 || WavFormat.samplesToMillis(totalSamples, sampleRate) <= maxSegmentMs) {
+            segments.add(wavFile);
+            return segments;
+        }
+
+        int frameSize = sampleRate * FRAME_MS / 1000;
+        float[] energy = frameEnergies(wavFile, frameSize, (int) ((totalSamples + frameSize - 1) / frameSize));
+        List<Long> cuts = findCuts(energy, frameSize, totalSamples);
+
+        String baseName = wavFile.getName().replace(".wav", "");
+        RandomAccessFile source = new RandomAccessFile(wavFile, "r");
+        boolean complete = false;
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            long start = 0;
+            for (int i = 0; i <= cuts.size(); i++) {
+                long end = i < cuts.size() ? cuts.get(i) : totalSamples;
+                File segment = new File(outputDir, baseName + "_seg" + i + ".wav");
+                segments.add(segment);
+                copySegment(source, start, end, sampleRate, segment, buffer);
+                start = end;
+            }
+            complete = true;
+        } finally {
+            source.close();
+            if (!complete) {
+                for (File segment : segments) {
+                    segment.delete();
+                }
+            }
+        }
+        return segments;
+    }
+
+    private float[] frameEnergies(File wavFile, int frameSize, int frameCount) throws IOException {
+        float[] energy = new float[frameCount];
+        InputStream in = new BufferedInputStream(new FileInputStream(wavFile), 64 * 1024);
+        try {
+            long skipped = 0;
+            while (skipped < WavFormat.HEADER_SIZE) {
+                skipped += in.skip(WavFormat.HEADER_SIZE - skipped);
+            }
+
+            byte[] bytes = new byte[frameSize * 2];
+            for (int frame = 0; frame < frameCount; frame++) {
+                int filled = 0;
+                int read;
+                while (filled < bytes.length && (read = in.read(bytes, filled, bytes.length - filled)) != -1) {
+                    filled += read;
+                }
+                long sumSquares = 0;
+                int samples = filled / 2;
+                for (int i = 0; i < samples; i++) {
+                    int sample = (short) ((bytes[i * 2] & 0xFF) | (bytes[i * 2 + 1] << 8));
+                    sumSquares += (long) sample * sample;
+                }
+                energy[frame] = samples > 0 ? (float) Math.sqrt((double) sumSquares / samples) : 0;
+            }
+        } finally {
+            in.close();
+        }
+        return energy;
+    }
+
+    /**
+     * Cut points in samples, each at the center of the quietest smoothed window between
+     * min and max segment length after the previous cut.
+     */
+    private List<Long> findCuts(float[] energy, int frameSize, long totalSamples) {
+        List<Long> cuts = new ArrayList<>();
+        int maxFrames = maxSegmentMs / FRAME_MS;
+        int minFrames = Math.min(minSegmentMs / FRAME_MS, maxFrames - 1);
+        int half = SMOOTHING_MS / FRAME_MS / 2;
+
+        int position = 0;
+        while (energy.length - position > maxFrames) {
+            int bestFrame = position + maxFrames;
+            double bestEnergy = Double.MAX_VALUE;
+            for (int center = position + minFrames; center <= position + maxFrames; center++) {
+                double sum = 0;
+                int count = 0;
+                for (int f = Math.max(0, center - half); f <= Math.min(energy.length - 1, center + half); f++) {
+                    sum += energy[f];
+                    count++;
+                }
+                double average = sum / count;
+                if (average < bestEnergy) {
+                    bestEnergy = average;
+                    bestFrame = center;
+                }
+            }
+            cuts.add(Math.min(totalSamples, (long) bestFrame * frameSize));
+            position = bestFrame;
+        }
+        return cuts;
+    }
+
+    private void copySegment(RandomAccessFile source, long startSample, long endSample, int sampleRate,
+                             File target, byte[] buffer) throws IOException {
+        long remaining = (endSample - startSample) * 2;
+        source.seek(WavFormat.HEADER_SIZE + startSample * 2);
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(target), 64 * 1024);
+        try {
+            out.write(WavFormat.header(sampleRate, 1, remaining));
+            while (remaining > 0) {
+                int read = source.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) break;
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
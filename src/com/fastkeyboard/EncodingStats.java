@@ -0,0 +1,128 @@
+package com.fastkeyboard;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Running upload size and stop-to-text latency per recording format, so the quality
+ * tiers can be compared on real dictations. Stored in the app prefs as
+ * "count,bytes,audioMillis,latencyMillis" per format, next to counts of uploads the
+ * quality gate skipped and uploads that came back empty.
+ */
+public class EncodingStats {
+    private static final String PREFS_NAME = "VoiceKeyboardPrefs";
+    private static final String KEY_PREFIX = "encoding_stats_";
+    // "skipped,uploads,wasted" for the pre-upload quality gate
+    private static final String KEY_QUALITY_GATE = "quality_gate_stats";
+    // Whisper API list price per minute of audio
+    private static final double DOLLARS_PER_MINUTE = 0.006;
+
+    /**
+     * @param format tier label from {@link RecordingSession#getFormat()}
+     * @param latencyMillis time from recording stop to transcription received
+     */
+    public static synchronized void record(Context context, String format, long fileBytes,
+                                           long audioMillis, long latencyMillis) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        long[] totals = parse(prefs.getString(KEY_PREFIX + format, null));
+        totals[0] += 1;
+        totals[1] += fileBytes;
+        totals[2] += audioMillis;
+        totals[3] += latencyMillis;
+        prefs.edit()
+            .putString(KEY_PREFIX + format, totals[0] + "," + totals[1] + "," + totals[2] + "," + totals[3])
+            .apply();
+    }
+
+    /**
+     * Counts a recording the quality gate kept from being uploaded.
+     */
+    public static synchronized void recordSkipped(Context context) {
+        updateGate(context, 1, 0, 0);
+    }
+
+    /**
+     * Counts an upload; {@code wasted} when it came back with no text, i.e. the
+     * API call bought nothing.
+     */
+    public static synchronized void recordUpload(Context context, boolean wasted) {
+        updateGate(context, 0, 1, wasted ? 1 : 0);
+    }
+
+    private static void updateGate(Context context, long skipped, long uploads, long wasted) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        long[] totals = parse(prefs.getString(KEY_QUALITY_GATE, null));
+        totals[0] += skipped;
+        totals[1] += uploads;
+        totals[2] += wasted;
+        prefs.edit()
+            .putString(KEY_QUALITY_GATE, totals[0] + "," + totals[1] + "," + totals[2])
+            .apply();
+    }
+
+    /**
+     * One line per format: upload size per second of audio and average latency.
+     */
+    public static String report(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        List<String> lines = new ArrayList<>();
+        long audioMillis = 0;
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (!entry.getKey().startsWith(KEY_PREFIX) || !(entry.getValue() instanceof String)) continue;
+
+            long[] totals = parse((String) entry.getValue());
+            if (totals[0] == 0) continue;
+            audioMillis += totals[2];
+            double kbPerSecond = totals[2] > 0 ? totals[1] / 1024.0 / (totals[2] / 1000.0) : 0;
+            lines.add(String.format(Locale.getDefault(), "%s: %.1f KB per audio second, %.2f s to text (%d uploads)",
+                entry.getKey().substring(KEY_PREFIX.length()), kbPerSecond,
+                totals[3] / 1000.0 / totals[0], totals[0]));
+        }
+        long[] gate = parse(prefs.getString(KEY_QUALITY_GATE, null));
+        if (lines.isEmpty() && gate[0] == 0) {
+            return "No uploads measured yet";
+        }
+        Collections.sort(lines);
+        // Audio totals are active (unpaused) time, which is what the API bills
+        lines.add(String.format(Locale.getDefault(), "%.1f min uploaded, about $%.2f",
+            audioMillis / 60000.0, audioMillis / 60000.0 * DOLLARS_PER_MINUTE));
+        lines.add(String.format(Locale.getDefault(), "%d skipped before upload, %d of %d uploads returned no text",
+            gate[0], gate[2], gate[1]));
+        StringBuilder report = new StringBuilder();
+        for (String line : lines) {
+            if (report.length() > 0) report.append('\n');
+            report.append(line);
+        }
+        return report.toString();
+    }
+
+    public static synchronized void reset(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = prefs.edit();
+        for (String key : prefs.getAll().keySet()) {
+            if (key.startsWith(KEY_PREFIX) || key.equals(KEY_QUALITY_GATE)) {
+                editor.remove(key);
+            }
+        }
+        editor.apply();
+    }
+
+    private static long[] parse(String value) {
+        long[] totals = new long[4];
+        if (value == null) return totals;
+        String[] parts = value.split(",");
+        for (int i = 0; i < totals.length && i < parts.length; i++) {
+            try {
+                totals[i] = Long.parseLong(parts[i]);
+            } catch (NumberFormatException e) {
+                return new long[4];
+            }
+        }
+        return totals;
+    }
+}
@@ -0,0 +1,62 @@
+package com.fastkeyboard;
+
+/**
+ * Hands-free end-of-utterance detection. Fed every captured PCM frame on the capture
+ * thread; once the speaker has talked for a moment and then stayed below the
+ * silence threshold for the hang time, the listener fires exactly once.
+ */
+public class Endpointer {
+    // Speech needed before trailing silence can end the recording, so a cough or click can't
+    private static final int MIN_SPEECH_MS = 300;
+
+    public interface Listener {
+        /** Called on the capture thread. */
+        void onEndpoint();
+    }
+
+    private final double thresholdRms;
+    private final long hangSamples;
+    private final long minSpeechSamples;
+    private final Listener listener;
+
+    private long speechSamples = 0;
+    private long silenceSamples = 0;
+    private boolean fired = false;
+
+    /**
+     * @param thresholdDbfs frame RMS below this level (dB relative to full scale) counts as silence
+     * @param hangMs continuous silence after speech that ends the recording
+     */
+    public Endpointer(int sampleRate, int thresholdDbfs, int hangMs, Listener listener) {
+        this.thresholdRms = 32768.0 * Math.pow(10, thresholdDbfs / 20.0);
+        this.hangSamples = (long) sampleRate * hangMs / 1000;
+        this.minSpeechSamples = (long) sampleRate * MIN_SPEECH_MS / 1000;
+        this.listener = listener;
+    }
+
+    public void onFrame(short[] samples, int offset, int length) {
+        if (fired || length <= 0) return;
+
+        long sumSquares = 0;
+        for (int i = offset; i < offset + length; i++) {
+            sumSquares += (long) samples[i] * samples[i];
+        }
+        double rms = Math.sqrt((double) sumSquares / length);
+
+        if (rms >= thresholdRms) {
+            speechSamples += length;
+            silenceSamples = 0;
+            return;
+        }
+
+        silenceSamples += length;
+        if (speechSamples >= minSpeechSamples && silenceSamples >= hangSamples) {
+            fired = true;
+            listener.onEndpoint();
+        }
+    }
+
+    public boolean hasFired() {
+        return fired;
+    }
+}
@@ -1,6 +1,7 @@
 package com.fastkeyboard;
 
 import android.Manifest;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.inputmethodservice.InputMethodService;
 import android.inputmethodservice.Keyboard;
@@ -19,6 +20,8 @@ import android.widget.FrameLayout;
 import java.io.File;
 
 public class FastKeyboard extends InputMethodService implements KeyboardView.OnKeyboardActionListener {
+    private static final String PREFS_NAME = "VoiceKeyboardPrefs";
+    private static final String KEY_AUDIO_ENGINE = "audio_engine";
 
     private LinearLayout mainLayout;
     private AudioRecorder audioRecorder;
@@ -212,14 +215,20 @@ public class FastKeyboard extends InputMethodService implements KeyboardView.OnK
     private void togglePause() {
         if (isPaused) {
             // Resume recording
-            audioRecorder.resumeRecording();
+            if (!audioRecorder.resumeRecording()) {
+                showToast("Could not resume recording");
+                return;
+            }
             isPaused = false;
             pauseButton.setText("⏸");
             pauseButton.setBackgroundColor(Color.parseColor("#FF9800"));
             showToast("Recording resumed");
         } else {
             // Pause recording
-            audioRecorder.pauseRecording();
+            if (!audioRecorder.pauseRecording()) {
+                showToast("Could not pause recording");
+                return;
+            }
             isPaused = true;
             pauseButton.setText("▶");
             pauseButton.setBackgroundColor(Color.parseColor("#4CAF50"));
@@ -233,6 +242,9 @@ public class FastKeyboard extends InputMethodService implements KeyboardView.OnK
             return;
         }
 
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        audioRecorder.setEngine(prefs.getString(KEY_AUDIO_ENGINE, AudioRecorder.ENGINE_MEDIA_RECORDER));
+
         File cacheDir = getCacheDir();
         audioRecorder.startRecording(cacheDir, new AudioRecorder.RecordingCallback() {
             @Override
@@ -285,7 +297,7 @@ public class FastKeyboard extends InputMethodService implements KeyboardView.OnK
                         resetVoiceButton();
                         showToast("Transcribing...");
 
-                        WhisperAPI.transcribeAudio(FastKeyboard.this, audioFile, new WhisperAPI.TranscriptionCallback() {
+                        TranscriptionRouter.transcribe(FastKeyboard.this, audioFile, 0, new WhisperAPI.TranscriptionCallback() {
                             @Override
                             public void onSuccess(final String transcription) {
                                 mainHandler.post(new Runnable() {
@@ -219,6 +219,14 @@ public class HistoryActivity extends Activity {
         contentText.setPadding(0, 8, 0, 12);
         entryLayout.addView(contentText);
 
+        // Improved text, filled in as it streams
+        final TextView improvedText = new TextView(this);
+        improvedText.setTextColor(Color.parseColor("#FFC107"));
+        improvedText.setTextSize(14);
+        improvedText.setPadding(0, 0, 0, 12);
+        improvedText.setVisibility(View.GONE);
+        entryLayout.addView(improvedText);
+
         // Buttons
         LinearLayout buttonsRow = new LinearLayout(this);
         buttonsRow.setOrientation(LinearLayout.HORIZONTAL);
@@ -241,7 +249,7 @@ public class HistoryActivity extends Activity {
         improveBtn.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                improveText(text, improveBtn);
+                improveText(text, improveBtn, improvedText);
             }
         });
         buttonsRow.addView(improveBtn);
@@ -262,7 +270,7 @@ public class HistoryActivity extends Activity {
         container.addView(entryLayout);
     }
 
-    private void improveText(final String originalText, final Button button) {
+    private void improveText(final String originalText, final Button button, final TextView improvedText) {
         SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
         String apiKey = prefs.getString("whisper_api_key", "");
 
@@ -273,19 +281,44 @@ public class HistoryActivity extends Activity {
 
         button.setEnabled(false);
         button.setText("⏳ Improving...");
+        improvedText.setText("");
+        improvedText.setVisibility(View.VISIBLE);
+
+        ChatGPTAPI.improveText(this, apiKey, originalText, new ChatGPTAPI.StreamingCallback() {
+            private final StringBuilder streamed = new StringBuilder();
+            private boolean updatePosted = false;
+
+            @Override
+            public void onDelta(String delta) {
+                synchronized (streamed) {
+                    streamed.append(delta);
+                    // One UI update at a time; later deltas ride along with the pending one
+                    if (updatePosted) return;
+                    updatePosted = true;
+                }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (streamed) {
+                            updatePosted = false;
+                            improvedText.setText("✨ " + streamed);
+                        }
+                    }
+                });
+            }
 
-        ChatGPTAPI.improveText(this, apiKey, originalText, new ChatGPTAPI.ChatGPTCallback() {
             @Override
-            public void onSuccess(final String improvedText) {
+            public void onSuccess(final String improvedResult) {
                 runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
                         button.setEnabled(true);
                         button.setText("✨ Improve");
+                        improvedText.setText("✨ " + improvedResult);
 
                         // Copy improved text to clipboard
                         android.content.ClipboardManager clipboard = (android.content.ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
-                        android.content.ClipData clip = android.content.ClipData.newPlainText("improved", improvedText);
+                        android.content.ClipData clip = android.content.ClipData.newPlainText("improved", improvedResult);
                         clipboard.setPrimaryClip(clip);
 
                         Toast.makeText(HistoryActivity.this, "Improved text copied to clipboard!", Toast.LENGTH_LONG).show();
@@ -300,6 +333,7 @@ public class HistoryActivity extends Activity {
                     public void run() {
                         button.setEnabled(true);
                         button.setText("✨ Improve");
+                        improvedText.setVisibility(View.GONE);
                         Toast.makeText(HistoryActivity.this, "Improvement failed: " + error, Toast.LENGTH_SHORT).show();
                     }
                 });
@@ -0,0 +1,373 @@
+package com.fastkeyboard;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Minimal streaming JSON reader for API responses: walks the document token by token
+ * straight off the connection's stream, decoding string escapes as it goes.
+ *
+ * Skipped values are scanned without building strings, and {@link #selectName}
+ * matches object keys without allocating, so pulling a few fields out of a large
+ * response costs little more than reading it.
+ *
+ * Not thread-safe. Plain Java, so it can be benchmarked off-device (see bench/).
+ */
+public class JsonPullParser {
+    public enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_OBJECT = 2;
+    private static final int NONEMPTY_OBJECT = 3;
+    private static final int DANGLING_NAME = 4;
+    private static final int EMPTY_ARRAY = 5;
+    private static final int NONEMPTY_ARRAY = 6;
+
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private int pos = 0;
+    private int limit = 0;
+    private long consumed = 0;
+
+    private int[] stack = new int[32];
+    private int depth = 1;
+    private Token peeked;
+    private final StringBuilder scratch = new StringBuilder();
+
+    public JsonPullParser(Reader in) {
+        this.in = in;
+        stack[0] = EMPTY_DOCUMENT;
+    }
+
+    public Token peek() throws IOException {
+        if (peeked != null) {
+            return peeked;
+        }
+        int c;
+        switch (stack[depth - 1]) {
+            case EMPTY_ARRAY:
+                stack[depth - 1] = NONEMPTY_ARRAY;
+                c = nextNonWhitespace();
+                if (c == ']') return peeked = Token.END_ARRAY;
+                pos--;
+                break;
+            case NONEMPTY_ARRAY:
+                c = nextNonWhitespace();
+                if (c == ']') return peeked = Token.END_ARRAY;
+                if (c != ',') throw syntaxError("Expected ',' or ']'");
+                break;
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT:
+                c = nextNonWhitespace();
+                if (c == '}') return peeked = Token.END_OBJECT;
+                if (stack[depth - 1] == NONEMPTY_OBJECT) {
+                    if (c != ',') throw syntaxError("Expected ',' or '}'");
+                    c = nextNonWhitespace();
+                }
+                if (c != '"') throw syntaxError("Expected a name");
+                stack[depth - 1] = DANGLING_NAME;
+                return peeked = Token.NAME;
+            case DANGLING_NAME:
+                if (nextNonWhitespace() != ':') throw syntaxError("Expected ':'");
+                stack[depth - 1] = NONEMPTY_OBJECT;
+                break;
+            case EMPTY_DOCUMENT:
+                stack[depth - 1] = NONEMPTY_DOCUMENT;
+                break;
+            default: // NONEMPTY_DOCUMENT
+                if (nextNonWhitespace() != -1) throw syntaxError("Trailing data");
+                return peeked = Token.END_DOCUMENT;
+        }
+
+        c = nextNonWhitespace();
+        switch (c) {
+            case '{':
+                return peeked = Token.BEGIN_OBJECT;
+            case '[':
+                return peeked = Token.BEGIN_ARRAY;
+            case '"':
+                return peeked = Token.STRING;
+            case 't':
+            case 'f':
+                pos--;
+                return peeked = Token.BOOLEAN;
+            case 'n':
+                pos--;
+                return peeked = Token.NULL;
+            case -1:
+                throw syntaxError("Unexpected end of input");
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    pos--;
+                    return peeked = Token.NUMBER;
+                }
+                throw syntaxError("Unexpected character '" + (char) c + "'");
+        }
+    }
+
+    public void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        depth--;
+    }
+
+    public void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        depth--;
+    }
+
+    /** True while the current object or array has more elements. */
+    public boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+    }
+
+    public String nextName() throws IOException {
+        expect(Token.NAME);
+        readString(true);
+        return scratch.toString();
+    }
+
+    /**
+     * Consumes the next name and returns its index in {@code names}, or -1 when it is
+     * none of them. Doesn't allocate.
+     */
+    public int selectName(String[] names) throws IOException {
+        expect(Token.NAME);
+        readString(true);
+        for (int i = 0; i < names.length; i++) {
+            if (contentEquals(scratch, names[i])) return i;
+        }
+        return -1;
+    }
+
+    public String nextString() throws IOException {
+        Token token = peek();
+        if (token == Token.NUMBER) {
+            peeked = null;
+            readNumber(true);
+            return scratch.toString();
+        }
+        expect(Token.STRING);
+        readString(true);
+        return scratch.toString();
+    }
+
+    public double nextDouble() throws IOException {
+        Token token = peek();
+        if (token == Token.STRING) {
+            // Some servers quote numbers
+            return Double.parseDouble(nextString());
+        }
+        expect(Token.NUMBER);
+        readNumber(true);
+        try {
+            return Double.parseDouble(scratch.toString());
+        } catch (NumberFormatException e) {
+            throw syntaxError("Bad number " + scratch);
+        }
+    }
+
+    public boolean nextBoolean() throws IOException {
+        expect(Token.BOOLEAN);
+        if (buffered(0) == 't') {
+            readLiteral("true");
+            return true;
+        }
+        readLiteral("false");
+        return false;
+    }
+
+    public void nextNull() throws IOException {
+        expect(Token.NULL);
+        readLiteral("null");
+    }
+
+    /** Skips the next value, including everything nested in it. */
+    public void skipValue() throws IOException {
+        int nesting = 0;
+        do {
+            switch (peek()) {
+                case BEGIN_OBJECT:
+                    beginObject();
+                    nesting++;
+                    break;
+                case BEGIN_ARRAY:
+                    beginArray();
+                    nesting++;
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    nesting--;
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    nesting--;
+                    break;
+                case NAME:
+                case STRING:
+                    peeked = null;
+                    readString(false);
+                    break;
+                case NUMBER:
+                    peeked = null;
+                    readNumber(false);
+                    break;
+                case BOOLEAN:
+                    nextBoolean();
+                    break;
+                case NULL:
+                    nextNull();
+                    break;
+                default:
+                    throw syntaxError("Nothing to skip");
+            }
+        } while (nesting > 0);
+    }
+
+    private void expect(Token expected) throws IOException {
+        Token token = peek();
+        if (token != expected) {
+            throw syntaxError("Expected " + expected + " but was " + token);
+        }
+        peeked = null;
+    }
+
+    private void push(int scope) {
+        if (depth == stack.length) {
+            int[] grown = new int[depth * 2];
+            System.arraycopy(stack, 0, grown, 0, depth);
+            stack = grown;
+        }
+        stack[depth++] = scope;
+    }
+
+    // Reads up to the closing quote (the opening one is already consumed)
+    private void readString(boolean keep) throws IOException {
+        scratch.setLength(0);
+        while (true) {
+            if (pos == limit && !fill()) {
+                throw syntaxError("Unterminated string");
+            }
+            int start = pos;
+            while (pos < limit) {
+                char c = buffer[pos++];
+                if (c == '"') {
+                    if (keep) scratch.append(buffer, start, pos - 1 - start);
+                    return;
+                }
+                if (c == '\\') {
+                    if (keep) scratch.append(buffer, start, pos - 1 - start);
+                    char unescaped = readEscape();
+                    if (keep) scratch.append(unescaped);
+                    start = pos;
+                }
+            }
+            if (keep) scratch.append(buffer, start, pos - start);
+        }
+    }
+
+    private char readEscape() throws IOException {
+        int c = read();
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                return (char) c;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit < 0) throw syntaxError("Bad \\u escape");
+                    value = (value << 4) | digit;
+                }
+                // Surrogate pairs arrive as two escapes and combine in the output as-is
+                return (char) value;
+            default:
+                throw syntaxError("Bad escape \\" + (char) c);
+        }
+    }
+
+    private void readNumber(boolean keep) throws IOException {
+        scratch.setLength(0);
+        while (true) {
+            if (pos == limit && !fill()) return;
+            char c = buffer[pos];
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                if (keep) scratch.append(c);
+                pos++;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void readLiteral(String literal) throws IOException {
+        for (int i = 0; i < literal.length(); i++) {
+            if (read() != literal.charAt(i)) throw syntaxError("Expected " + literal);
+        }
+    }
+
+    private int buffered(int offset) throws IOException {
+        if (pos + offset >= limit && !fill()) return -1;
+        return buffer[pos + offset];
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !fill()) return -1;
+        return buffer[pos++];
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        while (true) {
+            if (pos == limit && !fill()) return -1;
+            char c = buffer[pos++];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') return c;
+        }
+    }
+
+    // Only called with the buffer fully consumed, so nothing needs to be kept
+    private boolean fill() throws IOException {
+        consumed += limit;
+        pos = 0;
+        limit = 0;
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0) return false;
+        limit = read;
+        return true;
+    }
+
+    private static boolean contentEquals(StringBuilder builder, String value) {
+        if (builder.length() != value.length()) return false;
+        for (int i = 0; i < value.length(); i++) {
+            if (builder.charAt(i) != value.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException("Malformed JSON: " + message + " at offset " + (consumed + pos));
+    }
+}
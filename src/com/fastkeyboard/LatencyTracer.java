@@ -0,0 +1,124 @@
+package com.fastkeyboard;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Span tracer for the stop-to-text path of a dictation. Spans land in a fixed-size
+ * ring (oldest overwritten) and can be exported as Chrome trace JSON, which opens in
+ * chrome://tracing or ui.perfetto.dev.
+ *
+ * Usage: {@code long t = LatencyTracer.begin(); ...; LatencyTracer.end("upload", t);}
+ * When tracing is off {@link #begin()} returns 0 and {@link #end} returns at once,
+ * so call sites can stay in place permanently.
+ */
+public class LatencyTracer {
+    public static final int CAPACITY = 512;
+
+    private static volatile boolean enabled = false;
+    private static volatile int currentDictation = 0;
+
+    private static final String[] names = new String[CAPACITY];
+    private static final long[] startNanos = new long[CAPACITY];
+    private static final long[] durationNanos = new long[CAPACITY];
+    private static final long[] threadIds = new long[CAPACITY];
+    private static final String[] threadNames = new String[CAPACITY];
+    private static final int[] dictations = new int[CAPACITY];
+    private static int next = 0;
+    private static int size = 0;
+
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts a new dictation; spans recorded from now on are tagged with its number so
+     * one stop-to-text run can be picked out of the trace.
+     */
+    public static void newDictation() {
+        if (enabled) {
+            currentDictation++;
+        }
+    }
+
+    /** Start timestamp for a span, or 0 when tracing is off. */
+    public static long begin() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /** Records a span from {@code start} (a value from {@link #begin()}) to now. */
+    public static void end(String name, long start) {
+        if (start == 0) return;
+        long duration = System.nanoTime() - start;
+        Thread thread = Thread.currentThread();
+        synchronized (names) {
+            names[next] = name;
+            startNanos[next] = start;
+            durationNanos[next] = duration;
+            threadIds[next] = thread.getId();
+            threadNames[next] = thread.getName();
+            dictations[next] = currentDictation;
+            next = (next + 1) % CAPACITY;
+            if (size < CAPACITY) size++;
+        }
+    }
+
+    public static void clear() {
+        synchronized (names) {
+            next = 0;
+            size = 0;
+        }
+    }
+
+    /**
+     * The recorded spans, oldest first, as a Chrome trace ("X" complete events plus
+     * thread name metadata).
+     */
+    public static String toChromeTrace() {
+        StringBuilder json = new StringBuilder(size * 128 + 64);
+        Map<Long, String> threads = new HashMap<>();
+        json.append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        synchronized (names) {
+            int first = (next - size + CAPACITY) % CAPACITY;
+            for (int i = 0; i < size; i++) {
+                int slot = (first + i) % CAPACITY;
+                if (i > 0) json.append(',');
+                json.append("{\"name\":\"").append(escape(names[slot]))
+                    .append("\",\"cat\":\"dictation\",\"ph\":\"X\",\"pid\":1,\"tid\":").append(threadIds[slot])
+                    .append(",\"ts\":").append(String.format(Locale.US, "%.3f", startNanos[slot] / 1000.0))
+                    .append(",\"dur\":").append(String.format(Locale.US, "%.3f", durationNanos[slot] / 1000.0))
+                    .append(",\"args\":{\"dictation\":").append(dictations[slot]).append("}}");
+                threads.put(threadIds[slot], threadNames[slot]);
+            }
+        }
+        for (Map.Entry<Long, String> thread : threads.entrySet()) {
+            json.append(json.charAt(json.length() - 1) == '[' ? "" : ",")
+                .append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":").append(thread.getKey())
+                .append(",\"args\":{\"name\":\"").append(escape(thread.getValue())).append("\"}}");
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    public static void exportChromeTrace(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(toChromeTrace().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,102 @@
+package com.fastkeyboard;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Input level computed from PCM frames on the capture thread and published through
+ * a single-writer sequence-locked slot. The UI copies it into a reusable
+ * {@link Snapshot} once per display frame; neither side allocates per update.
+ */
+public class LevelMeter {
+    /** Number of per-frame RMS values kept, newest last in a snapshot. */
+    public static final int HISTORY_SIZE = 32;
+
+    private static final int RMS = 0;
+    private static final int PEAK = 1;
+    private static final int HEAD = 2;
+    private static final int HISTORY = 3;
+
+    // Odd while the writer is mid-update
+    private final AtomicLong sequence = new AtomicLong(0);
+    // Element reads are volatile, so a reader that sees the same even sequence before
+    // and after copying is guaranteed an untorn snapshot
+    private final AtomicIntegerArray slot = new AtomicIntegerArray(HISTORY + HISTORY_SIZE);
+    private volatile boolean clearRequested = false;
+
+    public static class Snapshot {
+        public int rms;
+        public int peak;
+        public final int[] history = new int[HISTORY_SIZE];
+        long sequence = -1;
+    }
+
+    /**
+     * Asks the writer to zero the level and history before its next publish, e.g.
+     * at the start of a recording.
+     */
+    public void clear() {
+        clearRequested = true;
+    }
+
+    /**
+     * Computes RMS and peak of one frame and publishes them. Capture thread only.
+     */
+    public void publish(short[] samples, int offset, int length) {
+        if (length <= 0) return;
+
+        long sumSquares = 0;
+        int peak = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int sample = samples[i];
+            sumSquares += sample * sample;
+            int abs = sample < 0 ? -sample : sample;
+            if (abs > peak) peak = abs;
+        }
+        int rms = (int) Math.sqrt((double) sumSquares / length);
+
+        long seq = sequence.get();
+        sequence.set(seq + 1);
+        if (clearRequested) {
+            clearRequested = false;
+            for (int i = 0; i < HISTORY_SIZE; i++) {
+                slot.set(HISTORY + i, 0);
+            }
+        }
+        int head = (slot.get(HEAD) + 1) % HISTORY_SIZE;
+        slot.set(HISTORY + head, rms);
+        slot.set(HEAD, head);
+        slot.set(RMS, rms);
+        slot.set(PEAK, peak);
+        sequence.set(seq + 2);
+    }
+
+    /**
+     * Copies the latest values into {@code out}. Returns false, leaving {@code out}
+     * untouched, when nothing was published since {@code out} was last filled.
+     */
+    public boolean read(Snapshot out) {
+        while (true) {
+            long before = sequence.get();
+            if (before == out.sequence) {
+                return false;
+            }
+            if ((before & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+
+            out.rms = slot.get(RMS);
+            out.peak = slot.get(PEAK);
+            int head = slot.get(HEAD);
+            for (int i = 0; i < HISTORY_SIZE; i++) {
+                out.history[i] = slot.get(HISTORY + (head + 1 + i) % HISTORY_SIZE);
+            }
+
+            if (sequence.get() == before) {
+                out.sequence = before;
+                return true;
+            }
+        }
+    }
+}
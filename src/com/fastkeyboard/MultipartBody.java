@@ -0,0 +1,100 @@
+package com.fastkeyboard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * multipart/form-data request body with every byte except the file contents encoded
+ * up front, so its exact length is known before the connection opens. That lets
+ * {@code setFixedLengthStreamingMode} send the audio as it is read instead of
+ * HttpURLConnection buffering the whole body in heap.
+ *
+ * Text fields are UTF-8. The file part comes last.
+ */
+public class MultipartBody {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    // One copy buffer per network thread, reused across uploads
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_BYTES];
+        }
+    };
+
+    private final String boundary;
+    private final ByteArrayOutputStream preamble = new ByteArrayOutputStream(512);
+    private byte[] epilogue;
+    private File file;
+
+    public MultipartBody() {
+        boundary = "----VoiceKeyboardBoundary" + Long.toHexString(System.nanoTime());
+    }
+
+    public String getContentType() {
+        return "multipart/form-data; boundary=" + boundary;
+    }
+
+    public MultipartBody addField(String name, String value) {
+        if (epilogue != null) throw new IllegalStateException("File part already added");
+        write(preamble, "--" + boundary + "\r\nContent-Disposition: form-data; name=\"" + name + "\"\r\n\r\n");
+        write(preamble, value);
+        preamble.write(CRLF, 0, CRLF.length);
+        return this;
+    }
+
+    /**
+     * Adds the file part header. The contents are either read from {@code file} by
+     * {@link #writeTo} or, when {@code file} is null, written by the caller between
+     * {@link #writePreamble} and {@link #writeEpilogue} (e.g. a chunked stream).
+     */
+    public MultipartBody setFile(String name, String filename, String contentType, File file) {
+        if (epilogue != null) throw new IllegalStateException("File part already added");
+        write(preamble, "--" + boundary + "\r\nContent-Disposition: form-data; name=\"" + name
+                + "\"; filename=\"" + filename + "\"\r\nContent-Type: " + contentType + "\r\n\r\n");
+        epilogue = ("\r\n--" + boundary + "--\r\n").getBytes(UTF_8);
+        this.file = file;
+        return this;
+    }
+
+    /** Exact body length, including a file held in a {@link RecordingSink}. */
+    public long getContentLength() {
+        if (file == null) throw new IllegalStateException("Length unknown for a streamed file part");
+        return preamble.size() + RecordingSink.length(file) + epilogue.length;
+    }
+
+    public void writePreamble(OutputStream out) throws IOException {
+        preamble.writeTo(out);
+    }
+
+    public void writeEpilogue(OutputStream out) throws IOException {
+        out.write(epilogue);
+    }
+
+    /** Writes the whole body, streaming the file through a reused 64 KB buffer. */
+    public void writeTo(OutputStream out) throws IOException {
+        writePreamble(out);
+        byte[] buffer = buffers.get();
+        InputStream in = RecordingSink.openStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        writeEpilogue(out);
+    }
+
+    private static void write(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes(UTF_8);
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,86 @@
+package com.fastkeyboard;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Any server speaking OpenAI's {@code /v1/audio/transcriptions} API: OpenAI itself,
+ * Groq, a local whisper.cpp or faster-whisper server. Up to two are configured, the
+ * main one and an optional second one that {@link TranscriptionRouter} can prefer
+ * when it answers faster.
+ */
+public class OpenAITranscriptionEngine implements TranscriptionEngine {
+    private static final String PREFS_NAME = "VoiceKeyboardPrefs";
+    private static final String KEY_API_URL = "whisper_api_url";
+    private static final String KEY_API_KEY = "whisper_api_key";
+    private static final String KEY_WHISPER_MODEL = "whisper_model";
+    private static final String KEY_SECOND_API_URL = "second_api_url";
+    private static final String KEY_SECOND_API_KEY = "second_api_key";
+    private static final String KEY_SECOND_MODEL = "second_model";
+
+    private final String label;
+    private final String apiUrl;
+    private final String apiKey;
+    private final String model;
+
+    public OpenAITranscriptionEngine(String label, String apiUrl, String apiKey, String model) {
+        this.label = label;
+        this.apiUrl = apiUrl;
+        this.apiKey = apiKey;
+        this.model = model;
+    }
+
+    /** The API configured in settings. */
+    public static OpenAITranscriptionEngine primary(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return new OpenAITranscriptionEngine("Main",
+                prefs.getString(KEY_API_URL, ""),
+                prefs.getString(KEY_API_KEY, ""),
+                prefs.getString(KEY_WHISPER_MODEL, "whisper-1"));
+    }
+
+    /** The optional second API; not configured unless both its URL and key are set. */
+    public static OpenAITranscriptionEngine secondary(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String model = prefs.getString(KEY_SECOND_MODEL, "");
+        if (model.isEmpty()) {
+            model = prefs.getString(KEY_WHISPER_MODEL, "whisper-1");
+        }
+        return new OpenAITranscriptionEngine("Second",
+                prefs.getString(KEY_SECOND_API_URL, ""),
+                prefs.getString(KEY_SECOND_API_KEY, ""),
+                model);
+    }
+
+    @Override
+    public String getName() {
+        // e.g. "Main (whisper-1 @ api.openai.com)"
+        String host = apiUrl;
+        try {
+            host = new URL(apiUrl).getHost();
+        } catch (MalformedURLException e) {
+            // Shown as entered
+        }
+        return label + " (" + model + " @ " + host + ")";
+    }
+
+    @Override
+    public boolean isConfigured() {
+        return !apiUrl.isEmpty() && !apiKey.isEmpty();
+    }
+
+    @Override
+    public void transcribe(Context context, File audioFile, String promptOverride,
+                           WhisperAPI.TranscriptionCallback callback) {
+        WhisperAPI.transcribeAudio(context, apiUrl, apiKey, model, audioFile, promptOverride, callback);
+    }
+
+    @Override
+    public WhisperAPI.StreamingUpload transcribeStream(Context context, PcmRingBuffer.Reader reader, int sampleRate,
+                                                       boolean trimSilence, WhisperAPI.TranscriptionCallback callback) {
+        return WhisperAPI.transcribeStream(context, apiUrl, apiKey, model, reader, sampleRate, trimSilence, callback);
+    }
+}
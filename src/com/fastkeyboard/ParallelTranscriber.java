@@ -0,0 +1,203 @@
+package com.fastkeyboard;
+
+import android.content.Context;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Transcribes long WAV dictations as silence-aligned segments with a bounded number
+ * of requests in flight, then stitches the texts back together in order.
+ *
+ * Each segment request carries the text of the nearest earlier segment that has
+ * already finished as its {@code prompt}. With parallelism 1 that is always the
+ * immediately preceding segment; with more, a segment started before its
+ * predecessor finished falls back to the closest finished one (or the configured prompt).
+ */
+public class ParallelTranscriber {
+    private static final String TAG = "VoiceKeyboard";
+    public static final int MAX_SEGMENT_MS = 60000;
+    private static final int MIN_SEGMENT_MS = 30000;
+    // Whisper only reads the last 224 prompt tokens; this many characters covers that
+    private static final int PROMPT_TAIL_CHARS = 800;
+    // Segments live under the cache, away from queued items whose directory is read back whole
+    private static final String SEGMENT_DIR = "segments";
+    // No batch runs this long, so an older segment directory belongs to a killed process
+    private static final long STALE_SEGMENTS_MS = 60 * 60 * 1000;
+
+    /**
+     * @param engine      where every segment is sent
+     * @param parallelism maximum segment uploads in flight; 0 or a short/non-WAV file means a single request
+     */
+    public static void transcribe(final Context context, final TranscriptionEngine engine, final File audioFile,
+                                  final int parallelism, final WhisperAPI.TranscriptionCallback callback) {
+        if (parallelism <= 0) {
+            engine.transcribe(context, audioFile, null, callback);
+            return;
+        }
+
+        // On the network pool like the uploads it gates: the user is waiting, and the
+        // background pool's low-priority threads can be busy pruning caches
+        TaskScheduler.network(TaskScheduler.Priority.INTERACTIVE, "segment " + audioFile.getName(), new Runnable() {
+            @Override
+            public void run() {
+                File segmentDir = createSegmentDir(context);
+                List<File> segments;
+                try {
+                    // The segmenter needs random access to the WAV on disk
+                    RecordingSink.materialize(audioFile);
+                    segments = new DictationSegmenter(MAX_SEGMENT_MS, MIN_SEGMENT_MS).split(audioFile, segmentDir);
+                } catch (IOException e) {
+                    Log.w(TAG, "ParallelTranscriber: segmenting failed, sending whole file: " + e.getMessage());
+                    segments = Collections.singletonList(audioFile);
+                }
+
+                if (segments.size() == 1) {
+                    segmentDir.delete();
+                    engine.transcribe(context, audioFile, null, callback);
+                    return;
+                }
+
+                Log.d(TAG, "ParallelTranscriber: " + segments.size() + " segments, parallelism " + parallelism);
+                new Batch(context, engine, segments, segmentDir, parallelism, callback).run();
+            }
+        });
+    }
+
+    /**
+     * A fresh directory in the cache for one split, after removing any a killed process
+     * left behind.
+     */
+    private static File createSegmentDir(Context context) {
+        File root = new File(context.getCacheDir(), SEGMENT_DIR);
+        File[] stale = root.listFiles();
+        if (stale != null) {
+            long cutoff = System.currentTimeMillis() - STALE_SEGMENTS_MS;
+            for (File dir : stale) {
+                if (dir.lastModified() < cutoff) {
+                    deleteDir(dir);
+                }
+            }
+        }
+        File dir = new File(root, Long.toString(System.nanoTime()));
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static class Batch {
+        private final Context context;
+        private final TranscriptionEngine engine;
+        private final List<File> segments;
+        private final File segmentDir;
+        private final WhisperAPI.TranscriptionCallback callback;
+        private final int parallelism;
+        private final AtomicInteger nextSegment = new AtomicInteger(0);
+        private final AtomicReferenceArray<String> results;
+        private final AtomicInteger remaining;
+        private final AtomicBoolean failed = new AtomicBoolean(false);
+        private final String configuredPrompt;
+
+        Batch(Context context, TranscriptionEngine engine, List<File> segments, File segmentDir,
+              int parallelism, WhisperAPI.TranscriptionCallback callback) {
+            this.context = context;
+            this.engine = engine;
+            this.segments = segments;
+            this.segmentDir = segmentDir;
+            this.callback = callback;
+            this.parallelism = parallelism;
+            this.results = new AtomicReferenceArray<>(segments.size());
+            this.remaining = new AtomicInteger(segments.size());
+            this.configuredPrompt = WhisperAPI.getConfiguredPrompt(context);
+        }
+
+        // Each finished segment starts the next one, so no pool thread sits waiting for a slot
+        void run() {
+            for (int i = 0; i < parallelism; i++) {
+                startNext();
+            }
+        }
+
+        private void startNext() {
+            final int index = nextSegment.getAndIncrement();
+            if (index >= segments.size() || failed.get()) {
+                return;
+            }
+            engine.transcribe(context, segments.get(index), promptFor(index), new WhisperAPI.TranscriptionCallback() {
+                @Override
+                public void onSuccess(String transcription) {
+                    results.set(index, transcription);
+                    if (remaining.decrementAndGet() == 0) {
+                        finish();
+                    } else {
+                        startNext();
+                    }
+                }
+
+                @Override
+                public void onError(String error) {
+                    if (WhisperAPI.ERROR_NO_TRANSCRIPTION.equals(error)) {
+                        // A segment that is all pause; the rest of the dictation still counts
+                        onSuccess("");
+                        return;
+                    }
+                    if (failed.compareAndSet(false, true)) {
+                        deleteSegments();
+                        // Appended, so the error keeps the form WhisperAPI.isTransient reads
+                        callback.onError(error + " (segment " + (index + 1) + "/" + segments.size() + ")");
+                    }
+                }
+            });
+        }
+
+        private String promptFor(int index) {
+            for (int previous = index - 1; previous >= 0; previous--) {
+                String text = results.get(previous);
+                if (text != null) {
+                    String tail = text.length() > PROMPT_TAIL_CHARS
+                            ? text.substring(text.length() - PROMPT_TAIL_CHARS)
+                            : text;
+                    return configuredPrompt.isEmpty() ? tail : configuredPrompt + "\n\n" + tail;
+                }
+            }
+            return null; // configured prompt
+        }
+
+        private void finish() {
+            StringBuilder stitched = new StringBuilder();
+            for (int i = 0; i < results.length(); i++) {
+                String text = results.get(i).trim();
+                if (text.isEmpty()) continue;
+                if (stitched.length() > 0) {
+                    stitched.append(' ');
+                }
+                stitched.append(text);
+            }
+            deleteSegments();
+            if (stitched.length() == 0) {
+                // Reported like a single silent request, so callers handle both alike
+                callback.onError(WhisperAPI.ERROR_NO_TRANSCRIPTION);
+            } else {
+                callback.onSuccess(stitched.toString());
+            }
+        }
+
+        private void deleteSegments() {
+            deleteDir(segmentDir);
+        }
+    }
+}
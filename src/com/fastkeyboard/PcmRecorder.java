@@ -0,0 +1,646 @@
+package com.fastkeyboard;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Process;
+import android.util.Log;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Capture engine built on AudioRecord. A dedicated urgent-audio thread reads 16-bit
+ * mono PCM into a {@link PcmRingBuffer}; a separate reader thread writes the WAV file
+ * handed to {@link AudioRecorder.RecordingCallback#onRecordingStopped}. Other
+ * consumers can attach via {@link #newRecordingReader()} while recording.
+ *
+ * With pre-roll on, the microphone and capture thread stay running between
+ * recordings and each recording starts a short way back in the ring.
+ */
+public class PcmRecorder {
+    private static final String TAG = "VoiceKeyboard";
+    private static final int FRAME_MS = 20;
+    // Enough slack for a streaming uploader to ride out a few seconds of slow uplink
+    private static final int RING_SECONDS = 10;
+    private static final long WRITER_POLL_MS = 50;
+    private static final int TRIM_PAD_MS = 200;
+    private static final int TRIM_MAX_PAUSE_MS = 800;
+
+    private int sampleRate = 16000;
+    private boolean trimSilence = false;
+    private long memorySinkLimit = 0;
+    private boolean preRoll = false;
+    private int preRollMs = 0;
+
+    private AudioRecord audioRecord;
+    // AudioRecord constructed ahead of the next start; guarded by prepareLock
+    private final Object prepareLock = new Object();
+    private AudioRecord preparedRecord;
+    private int preparedSampleRate;
+    private PcmRingBuffer ringBuffer;
+    private Thread captureThread;
+    private WavFileWriter fileWriter;
+    private Thread fileWriterThread;
+    private Thread journalThread;
+    private File journalDir;
+    private int captureSampleRate;
+    private File outputFile;
+    private RecordingSession session;
+    private long recordingStartPosition;
+    private final List<PcmRingBuffer.Reader> recordingReaders = new ArrayList<>();
+    // Capture thread runs while true; outlives a recording when pre-roll is on
+    private volatile boolean capturing = false;
+    private volatile boolean awaitingFirstSample = false;
+    private volatile boolean isRecording = false;
+    private volatile boolean isPaused = false;
+    private volatile Endpointer endpointer;
+    private final AtomicInteger maxAmplitude = new AtomicInteger(0);
+    private final LevelMeter levelMeter = new LevelMeter();
+
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * When on, the WAV file writer drops leading/trailing silence and shortens long
+     * pauses. Applies from the next recording.
+     */
+    public void setTrimSilence(boolean trimSilence) {
+        this.trimSilence = trimSilence;
+    }
+
+    /**
+     * Keeps the WAV in a {@link RecordingSink} until it exceeds {@code bytes}, then
+     * spills to the output file. 0 writes straight to disk. Applies from the next recording.
+     */
+    public void setMemorySinkLimit(long bytes) {
+        this.memorySinkLimit = bytes;
+    }
+
+    /**
+     * Also writes each recording to a {@link RecordingJournal} under {@code filesDir}
+     * so it survives the process being killed; null turns journaling off.
+     */
+    public void setJournalDir(File filesDir) {
+        this.journalDir = filesDir;
+    }
+
+    /**
+     * Frame-energy endpointer evaluated on the capture thread, or null for manual stop.
+     */
+    public void setEndpointer(Endpointer endpointer) {
+        this.endpointer = endpointer;
+    }
+
+    /**
+     * Keeps the microphone open between recordings so the next {@link #startRecording}
+     * begins {@code preRollMs} in the past instead of after AudioRecord start-up.
+     * Captured audio only lives in the in-memory ring until a recording claims it.
+     *
+     * @return false if the microphone could not be opened
+     */
+    public boolean startPreRoll(int preRollMs) {
+        this.preRollMs = preRollMs;
+        preRoll = true;
+        if (capturing && captureSampleRate != sampleRate && !isRecording) {
+            closeCapture();
+        }
+        if (!capturing) {
+            String error = openCapture();
+            if (error != null) {
+                Log.w(TAG, "PcmRecorder: pre-roll unavailable: " + error);
+                preRoll = false;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Releases the microphone, or after the current recording if one is in progress.
+     */
+    public void stopPreRoll() {
+        preRoll = false;
+        if (capturing && !isRecording) {
+            closeCapture();
+        }
+    }
+
+    public boolean isPreRollActive() {
+        return preRoll && capturing;
+    }
+
+    public void startRecording(File outputDir, RecordingSession session, AudioRecorder.RecordingCallback callback) {
+        if (isRecording) {
+            if (callback != null) {
+                callback.onError("Already recording");
+            }
+            return;
+        }
+
+        if (capturing && captureSampleRate != sampleRate) {
+            closeCapture();
+        }
+
+        this.session = session;
+        long startPosition = 0;
+        if (capturing) {
+            // Pre-roll audio from before the request is already in the ring
+            startPosition = Math.max(0, ringBuffer.getWritePosition() - (long) sampleRate * preRollMs / 1000);
+            session.markFirstSample();
+        } else {
+            awaitingFirstSample = true;
+            String error = openCapture();
+            if (error != null) {
+                awaitingFirstSample = false;
+                if (callback != null) {
+                    callback.onError(error);
+                }
+                return;
+            }
+        }
+
+        outputFile = new File(outputDir, "voice_" + System.currentTimeMillis() + ".wav");
+        maxAmplitude.set(0);
+        levelMeter.clear();
+        isPaused = false;
+        recordingStartPosition = startPosition;
+        session.setActiveSamples(ringBuffer.getWritePosition() - startPosition);
+        isRecording = true;
+
+        fileWriter = new WavFileWriter(newRecordingReader(), outputFile, session, trimSilence, memorySinkLimit);
+        fileWriterThread = new Thread(fileWriter, "PcmFileWriter");
+        fileWriterThread.start();
+        if (journalDir != null) {
+            journalThread = new Thread(new JournalWriter(newRecordingReader(), journalDir, session), "PcmJournal");
+            journalThread.start();
+        }
+
+        if (callback != null) {
+            callback.onRecordingStarted();
+        }
+    }
+
+    /**
+     * Ends the recording at once; the callback follows on a background thread once the
+     * writers have patched the header, flushed the trimmer and synced the journal,
+     * which can take as long as the storage does.
+     */
+    public void stopRecording(final AudioRecorder.RecordingCallback callback) {
+        if (!isRecording) {
+            if (callback != null) {
+                callback.onError("Not currently recording");
+            }
+            return;
+        }
+
+        final File file = outputFile;
+        final WavFileWriter writer = fileWriter;
+        finishRecording("PcmStop", new Runnable() {
+            @Override
+            public void run() {
+                if (callback == null) return;
+                if (writer.error != null) {
+                    callback.onError("Failed to stop recording: " + writer.error);
+                } else {
+                    callback.onRecordingStopped(file);
+                }
+            }
+        });
+    }
+
+    /**
+     * Gates frames on the capture thread: while paused nothing reaches the ring, so
+     * the writers, meter and endpointer sit idle and the file has no gap to splice.
+     */
+    public boolean pauseRecording() {
+        if (!isRecording) return false;
+        isPaused = true;
+        return true;
+    }
+
+    public boolean resumeRecording() {
+        if (!isRecording) return false;
+        isPaused = false;
+        return true;
+    }
+
+    public boolean isRecording() {
+        return isRecording;
+    }
+
+    /**
+     * Peak absolute sample since the previous call, matching MediaRecorder semantics.
+     */
+    public int getMaxAmplitude() {
+        return isRecording ? maxAmplitude.getAndSet(0) : 0;
+    }
+
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    /**
+     * Per-frame RMS/peak of the current recording, published from the capture thread.
+     */
+    public LevelMeter getLevelMeter() {
+        return levelMeter;
+    }
+
+    /**
+     * A reader over the current recording, from its first sample (including pre-roll)
+     * until stop. Returns null when not recording.
+     */
+    public PcmRingBuffer.Reader newRecordingReader() {
+        synchronized (recordingReaders) {
+            if (!isRecording) return null;
+            PcmRingBuffer.Reader reader = ringBuffer.newReader(recordingStartPosition);
+            recordingReaders.add(reader);
+            return reader;
+        }
+    }
+
+    public void release() {
+        preRoll = false;
+        discardPrepared();
+        if (isRecording) {
+            final File file = outputFile;
+            finishRecording("PcmRelease", new Runnable() {
+                @Override
+                public void run() {
+                    // Abandoned recording; don't leave it pinning pooled memory
+                    RecordingSink.delete(file);
+                }
+            });
+        }
+        if (capturing) {
+            closeCapture();
+        }
+    }
+
+    /**
+     * Ends the recording and runs {@code then} once the writers have exited. The wait
+     * is as long as the storage is slow, so it happens on a thread of its own rather
+     * than the caller's, usually the main one: a pool thread could be busy, and stop
+     * is on the dictation's path.
+     */
+    private void finishRecording(String name, final Runnable then) {
+        final Thread writerThread = fileWriterThread;
+        final Thread journal = journalThread;
+        endRecording();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                joinQuietly(writerThread);
+                joinQuietly(journal);
+                then.run();
+            }
+        }, name).start();
+    }
+
+    // Ends the readers and hands the writer threads off; they finish on their own
+    private void endRecording() {
+        synchronized (recordingReaders) {
+            isRecording = false;
+            if (preRoll) {
+                // Microphone stays open; end this recording's readers where it stopped
+                long end = ringBuffer.getWritePosition();
+                for (PcmRingBuffer.Reader reader : recordingReaders) {
+                    reader.endAt(end);
+                }
+            }
+            recordingReaders.clear();
+        }
+
+        if (!preRoll) {
+            closeCapture();
+        }
+        fileWriter = null;
+        fileWriterThread = null;
+        journalThread = null;
+    }
+
+    /**
+     * Constructs the next AudioRecord on a background thread so the following start
+     * skips driver setup. No-op while the microphone is already open.
+     */
+    public void prepareNext() {
+        if (capturing) return;
+        final int rate = sampleRate;
+        TaskScheduler.background(TaskScheduler.Priority.NORMAL, "prepare AudioRecord", new Runnable() {
+            @Override
+            public void run() {
+                synchronized (prepareLock) {
+                    if (preparedRecord != null && preparedSampleRate == rate) return;
+                    discardPreparedLocked();
+                    try {
+                        preparedRecord = createAudioRecord(rate);
+                        preparedSampleRate = rate;
+                    } catch (IOException e) {
+                        Log.w(TAG, "PcmRecorder: background prepare failed: " + e.getMessage());
+                    }
+                }
+            }
+        });
+    }
+
+    public void discardPrepared() {
+        synchronized (prepareLock) {
+            discardPreparedLocked();
+        }
+    }
+
+    private void discardPreparedLocked() {
+        if (preparedRecord != null) {
+            preparedRecord.release();
+            preparedRecord = null;
+        }
+    }
+
+    private static AudioRecord createAudioRecord(int rate) throws IOException {
+        int minBuffer = AudioRecord.getMinBufferSize(rate,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        if (minBuffer <= 0) {
+            throw new IOException("Sample rate " + rate + " not supported by AudioRecord");
+        }
+
+        // At least 200 ms of headroom in the driver buffer
+        int bufferBytes = Math.max(minBuffer, rate / 5 * 2);
+        AudioRecord record;
+        try {
+            record = new AudioRecord(MediaRecorder.AudioSource.MIC, rate,
+                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferBytes);
+        } catch (Exception e) {
+            throw new IOException("Failed to start recording: " + e.getMessage());
+        }
+        if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+            record.release();
+            throw new IOException("Failed to start recording: AudioRecord not initialized");
+        }
+        return record;
+    }
+
+    /**
+     * Opens AudioRecord (the prepared one when it matches) and starts the capture
+     * thread into a fresh ring. Returns an error message, or null on success.
+     */
+    private String openCapture() {
+        synchronized (prepareLock) {
+            if (preparedRecord != null && preparedSampleRate == sampleRate) {
+                audioRecord = preparedRecord;
+                preparedRecord = null;
+            } else {
+                discardPreparedLocked();
+            }
+        }
+        if (audioRecord == null) {
+            try {
+                audioRecord = createAudioRecord(sampleRate);
+            } catch (IOException e) {
+                return e.getMessage();
+            }
+        }
+
+        try {
+            audioRecord.startRecording();
+        } catch (Exception e) {
+            audioRecord.release();
+            audioRecord = null;
+            return "Failed to start recording: " + e.getMessage();
+        }
+
+        ringBuffer = new PcmRingBuffer(sampleRate * RING_SECONDS);
+        captureSampleRate = sampleRate;
+        capturing = true;
+        captureThread = new Thread(new CaptureLoop(audioRecord, ringBuffer), "PcmCapture");
+        captureThread.start();
+        return null;
+    }
+
+    private void closeCapture() {
+        capturing = false;
+        joinQuietly(captureThread);
+        captureThread = null;
+
+        if (audioRecord != null) {
+            try {
+                audioRecord.stop();
+            } catch (Exception e) {
+                // Ignore
+            }
+            audioRecord.release();
+            audioRecord = null;
+        }
+
+        ringBuffer.close();
+    }
+
+    private static void joinQuietly(Thread thread) {
+        if (thread == null) return;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class CaptureLoop implements Runnable {
+        private final AudioRecord record;
+        private final PcmRingBuffer ring;
+
+        CaptureLoop(AudioRecord record, PcmRingBuffer ring) {
+            this.record = record;
+            this.ring = ring;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            short[] frame = new short[sampleRate * FRAME_MS / 1000];
+
+            while (capturing) {
+                int read = record.read(frame, 0, frame.length);
+                if (read < 0) {
+                    Log.e(TAG, "PcmRecorder: AudioRecord.read failed with " + read);
+                    break;
+                }
+                boolean recording = isRecording;
+                if (read == 0 || (recording && isPaused)) {
+                    continue;
+                }
+                if (awaitingFirstSample) {
+                    awaitingFirstSample = false;
+                    session.markFirstSample();
+                    Log.d(TAG, "PcmRecorder: first sample " + session.getStartLatencyMillis() + " ms after start request");
+                }
+
+                int peak = 0;
+                for (int i = 0; i < read; i++) {
+                    int abs = Math.abs(frame[i]);
+                    if (abs > peak) peak = abs;
+                }
+                int current;
+                do {
+                    current = maxAmplitude.get();
+                } while (peak > current && !maxAmplitude.compareAndSet(current, peak));
+
+                ring.write(frame, 0, read);
+                if (recording) {
+                    // Paused frames never reach the ring, so this is exactly the unpaused audio
+                    session.setActiveSamples(ring.getWritePosition() - recordingStartPosition);
+                    levelMeter.publish(frame, 0, read);
+                }
+
+                Endpointer currentEndpointer = endpointer;
+                if (recording && currentEndpointer != null) {
+                    currentEndpointer.onFrame(frame, 0, read);
+                }
+            }
+        }
+    }
+
+    private class JournalWriter implements Runnable {
+        private final PcmRingBuffer.Reader reader;
+        private final File filesDir;
+        private final RecordingSession session;
+
+        JournalWriter(PcmRingBuffer.Reader reader, File filesDir, RecordingSession session) {
+            this.reader = reader;
+            this.filesDir = filesDir;
+            this.session = session;
+        }
+
+        @Override
+        public void run() {
+            // Opened here rather than in startRecording to keep the fsyncs off the main thread
+            RecordingJournal journal;
+            try {
+                journal = RecordingJournal.begin(filesDir, sampleRate);
+            } catch (IOException e) {
+                Log.w(TAG, "PcmRecorder: journaling unavailable: " + e.getMessage());
+                return;
+            }
+            session.setJournalId(journal.getId());
+
+            short[] samples = new short[sampleRate * FRAME_MS / 1000 * 4];
+            try {
+                int count;
+                while ((count = reader.read(samples, 0, samples.length, WRITER_POLL_MS)) != -1) {
+                    if (count > 0) {
+                        journal.append(samples, 0, count);
+                    }
+                }
+                journal.finish();
+            } catch (IOException e) {
+                Log.w(TAG, "PcmRecorder: journal write failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private class WavFileWriter implements Runnable {
+        private final PcmRingBuffer.Reader reader;
+        private final File file;
+        private final RecordingSession session;
+        private final boolean trim;
+        private final long memoryLimit;
+        volatile String error;
+
+        WavFileWriter(PcmRingBuffer.Reader reader, File file, RecordingSession session, boolean trim, long memoryLimit) {
+            this.reader = reader;
+            this.file = file;
+            this.session = session;
+            this.trim = trim;
+            this.memoryLimit = memoryLimit;
+        }
+
+        @Override
+        public void run() {
+            short[] samples = new short[sampleRate * FRAME_MS / 1000 * 4];
+            final byte[] bytes = new byte[samples.length * 2];
+            long firstSample = reader.getPosition();
+            RecordingSink sink = null;
+            OutputStream out = null;
+            try {
+                if (memoryLimit > 0) {
+                    sink = RecordingSink.create(file, memoryLimit);
+                    out = sink;
+                } else {
+                    out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+                }
+                out.write(WavFormat.header(sampleRate, 1, 0));
+
+                final OutputStream fileOut = out;
+                AudioQualityAnalyzer analyzer = new AudioQualityAnalyzer(sampleRate);
+                SilenceTrimmer trimmer = null;
+                if (trim) {
+                    trimmer = new SilenceTrimmer(sampleRate, TRIM_PAD_MS, TRIM_MAX_PAUSE_MS, new SilenceTrimmer.Sink() {
+                        @Override
+                        public void write(short[] src, int offset, int length) throws IOException {
+                            WavFormat.writeSamples(fileOut, src, offset, length, bytes);
+                        }
+                    });
+                }
+
+                int count;
+                while ((count = reader.read(samples, 0, samples.length, WRITER_POLL_MS)) != -1) {
+                    if (count == 0) continue;
+                    analyzer.write(samples, 0, count);
+                    if (trimmer != null) {
+                        trimmer.write(samples, 0, count);
+                    } else {
+                        WavFormat.writeSamples(out, samples, 0, count, bytes);
+                    }
+                }
+
+                long traceFinalize = LatencyTracer.begin();
+                session.setQuality(analyzer.finish());
+                Log.d(TAG, "PcmRecorder: quality " + session.getQuality());
+                session.setCapturedMillis(WavFormat.samplesToMillis(reader.getPosition() - firstSample, sampleRate));
+                if (trimmer != null) {
+                    trimmer.finish();
+                    session.setTrimmedMillis(WavFormat.samplesToMillis(trimmer.getRemovedSamples(), sampleRate));
+                    session.setSpeechDetected(trimmer.isSpeechSeen());
+                    Log.d(TAG, "PcmRecorder: trimmed " + session.getTrimmedMillis() + " ms of silence from "
+                            + session.getCapturedMillis() + " ms");
+                }
+
+                out.close();
+                out = null;
+
+                if (sink != null) {
+                    sink.patch(0, WavFormat.header(sampleRate, 1, sink.length() - WavFormat.HEADER_SIZE));
+                } else {
+                    WavFormat.finalizeHeader(file, sampleRate, 1);
+                }
+                LatencyTracer.end("file finalize", traceFinalize);
+                if (reader.getDroppedSamples() > 0) {
+                    Log.w(TAG, "PcmRecorder: file writer fell behind, dropped " + reader.getDroppedSamples() + " samples");
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "PcmRecorder: failed writing " + file.getName() + ": " + e.getMessage());
+                error = e.getMessage();
+                if (sink != null) {
+                    RecordingSink.delete(file);
+                }
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // Ignore
+                    }
+                }
+            }
+        }
+    }
+}
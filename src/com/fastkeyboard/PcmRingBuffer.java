@@ -0,0 +1,201 @@
+package com.fastkeyboard;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated ring of 16-bit PCM samples with one writer (the capture thread)
+ * and any number of readers (file writers, meters, uploaders).
+ *
+ * The writer never blocks and never waits for readers. Each reader keeps its own
+ * position; a reader that falls more than one ring behind skips ahead and counts
+ * the samples it lost instead of stalling capture.
+ *
+ * Samples are plain array elements, so a reader lapped mid-copy can get a torn copy;
+ * it detects that seqlock-style instead of locking. The writer stores
+ * {@code claimPosition} before overwriting any slot, the reader loads it after its
+ * copy, and a copy that saw any overwritten slot must see the claim covering it. That
+ * needs each side's plain accesses kept on their side of the volatile one:
+ * <ul>
+ * <li>Writer: a volatile store is followed by a StoreLoad barrier, a full fence, so
+ * the slot stores cannot move above the claim.</li>
+ * <li>Reader: a volatile load only keeps later accesses after it, so the copy's loads
+ * could sink below the claim check. The reader stores its position to a volatile
+ * first; that store keeps earlier loads above it, and its StoreLoad barrier keeps it
+ * above the claim load. {@code VarHandle.loadLoadFence()} would say this directly but
+ * needs API 33.</li>
+ * </ul>
+ */
+public class PcmRingBuffer {
+    private static final long POLL_NANOS = 2000000L; // 2 ms
+
+    private final short[] buffer;
+    private final int mask;
+
+    // Total samples published to readers
+    private final AtomicLong writePosition = new AtomicLong(0);
+    // Total samples the writer has started copying; runs ahead of writePosition during a write
+    private final AtomicLong claimPosition = new AtomicLong(0);
+    private volatile boolean closed = false;
+
+    public PcmRingBuffer(int minCapacitySamples) {
+        int capacity = 1;
+        while (capacity < minCapacitySamples) {
+            capacity <<= 1;
+        }
+        buffer = new short[capacity];
+        mask = capacity - 1;
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+
+    public long getWritePosition() {
+        return writePosition.get();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Appends samples. Must only be called from the single producer thread.
+     */
+    public void write(short[] src, int offset, int length) {
+        if (length > buffer.length) {
+            // Only the newest ring's worth can survive anyway
+            offset += length - buffer.length;
+            length = buffer.length;
+        }
+
+        long position = writePosition.get();
+        claimPosition.set(position + length);
+
+        int start = (int) (position & mask);
+        int firstPart = Math.min(length, buffer.length - start);
+        System.arraycopy(src, offset, buffer, start, firstPart);
+        if (firstPart < length) {
+            System.arraycopy(src, offset + firstPart, buffer, 0, length - firstPart);
+        }
+
+        writePosition.set(position + length);
+    }
+
+    /**
+     * Marks the end of the stream. Readers drain what is left and then see -1.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Creates a reader positioned at the newest sample.
+     */
+    public Reader newReader() {
+        return new Reader(writePosition.get());
+    }
+
+    /**
+     * Creates a reader positioned at an absolute sample position, clamped to what
+     * the ring still holds. Used to start slightly in the past (pre-roll).
+     */
+    public Reader newReader(long startPosition) {
+        long newest = writePosition.get();
+        long oldest = Math.max(0, newest - buffer.length);
+        return new Reader(Math.max(oldest, Math.min(newest, startPosition)));
+    }
+
+    public class Reader {
+        private long readPosition;
+        private long droppedSamples = 0;
+        // Stored after each copy only for its barrier; see the class doc
+        private volatile long copiedPosition;
+        private volatile long endPosition = Long.MAX_VALUE;
+
+        private Reader(long startPosition) {
+            readPosition = startPosition;
+        }
+
+        public long getPosition() {
+            return readPosition;
+        }
+
+        public long getDroppedSamples() {
+            return droppedSamples;
+        }
+
+        /**
+         * Ends this reader at an absolute sample position while the ring keeps running,
+         * e.g. when a recording stops but pre-roll capture continues. Once the reader
+         * reaches the position, reads return -1 as if the ring had closed.
+         */
+        public void endAt(long position) {
+            endPosition = position;
+        }
+
+        /**
+         * Copies up to {@code length} available samples without blocking.
+         * Returns the number copied, 0 if nothing is available yet, or -1 once the
+         * ring is closed (or this reader's end position reached) and fully drained.
+         */
+        public int read(short[] dst, int offset, int length) {
+            while (true) {
+                // Read closed before the position so a close() after the last write is never missed
+                boolean wasClosed = closed;
+                long end = endPosition;
+                long written = writePosition.get();
+
+                if (written - readPosition > buffer.length) {
+                    skipTo(written - buffer.length);
+                    continue;
+                }
+                long available = Math.min(written, end) - readPosition;
+                if (available <= 0) {
+                    return wasClosed || readPosition >= end ? -1 : 0;
+                }
+
+                int count = (int) Math.min(length, available);
+                int start = (int) (readPosition & mask);
+                int firstPart = Math.min(count, buffer.length - start);
+                System.arraycopy(buffer, start, dst, offset, firstPart);
+                if (firstPart < count) {
+                    System.arraycopy(buffer, 0, dst, offset + firstPart, count - firstPart);
+                }
+
+                // If the writer claimed our slots while we were copying, the copy may be torn.
+                // The volatile store keeps the copy's loads ahead of the claim load.
+                copiedPosition = readPosition + count;
+                if (claimPosition.get() - readPosition > buffer.length) {
+                    skipTo(claimPosition.get() - buffer.length);
+                    continue;
+                }
+
+                readPosition += count;
+                return count;
+            }
+        }
+
+        /**
+         * Like {@link #read(short[], int, int)} but waits up to {@code timeoutMs} for
+         * data to arrive. Returns 0 on timeout.
+         */
+        public int read(short[] dst, int offset, int length, long timeoutMs) {
+            long deadline = System.nanoTime() + timeoutMs * 1000000L;
+            while (true) {
+                int count = read(dst, offset, length);
+                if (count != 0 || System.nanoTime() >= deadline) {
+                    return count;
+                }
+                LockSupport.parkNanos(POLL_NANOS);
+            }
+        }
+
+        private void skipTo(long position) {
+            if (position > readPosition) {
+                droppedSamples += position - readPosition;
+                readPosition = position;
+            }
+        }
+    }
+}
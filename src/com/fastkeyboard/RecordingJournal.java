@@ -0,0 +1,276 @@
+package com.fastkeyboard;
+
+import android.util.Log;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Crash-safe copy of a recording: an append-only series of self-contained WAV
+ * segments plus a small text index, under {@code filesDir/journal/<id>/}.
+ *
+ * Samples are flushed to the OS after every append, so killing the process loses
+ * nothing already captured. Segments are closed with a correct header every
+ * {@link #SEGMENT_SECONDS}; the one open at a crash just needs its header rewritten
+ * from the file length, which {@link Unfinished#assemble} does.
+ *
+ * A journal is discarded once its transcription has been inserted. Any journal
+ * still on disk that this process isn't working on is an unfinished dictation.
+ */
+public class RecordingJournal {
+    private static final String TAG = "VoiceKeyboard";
+    private static final String DIR = "journal";
+    private static final String INDEX = "index";
+    public static final int SEGMENT_SECONDS = 10;
+
+    // Journals this process is still recording or transcribing
+    private static final Set<String> inUse = Collections.synchronizedSet(new HashSet<String>());
+
+    private final File dir;
+    private final String id;
+    private final int sampleRate;
+    private final long segmentSamples;
+    private final byte[] scratch = new byte[8192];
+    private FileOutputStream index;
+    private FileOutputStream segmentFile;
+    private OutputStream segment;
+    private int segmentNumber = -1;
+    private long segmentWritten = 0;
+
+    private RecordingJournal(File dir, String id, int sampleRate) {
+        this.dir = dir;
+        this.id = id;
+        this.sampleRate = sampleRate;
+        this.segmentSamples = (long) sampleRate * SEGMENT_SECONDS;
+    }
+
+    public static RecordingJournal begin(File filesDir, int sampleRate) throws IOException {
+        String id = String.valueOf(System.currentTimeMillis());
+        File dir = new File(new File(filesDir, DIR), id);
+        if (!dir.mkdirs()) {
+            throw new IOException("Cannot create journal " + dir);
+        }
+        RecordingJournal journal = new RecordingJournal(dir, id, sampleRate);
+        inUse.add(id);
+        journal.index = new FileOutputStream(new File(dir, INDEX), true);
+        journal.appendIndex("rate " + sampleRate);
+        return journal;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Appends samples, rolling to a new segment file when the current one is full.
+     * Called from the journal writer thread only.
+     */
+    public void append(short[] samples, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (segment == null || segmentWritten == segmentSamples) {
+                rollSegment();
+            }
+            int count = (int) Math.min(length, segmentSamples - segmentWritten);
+            WavFormat.writeSamples(segment, samples, offset, count, scratch);
+            segmentWritten += count;
+            offset += count;
+            length -= count;
+        }
+        // Into the OS page cache, which survives the process being killed
+        segment.flush();
+    }
+
+    /**
+     * Closes the last segment after a normal stop. The journal stays on disk until
+     * {@link #discard(File, String)}.
+     */
+    public void finish() throws IOException {
+        closeSegment();
+        appendIndex("stopped");
+        index.close();
+    }
+
+    /**
+     * Deletes a journal whose audio is no longer needed (transcribed or cancelled).
+     */
+    public static void discard(File filesDir, String id) {
+        if (id == null) return;
+        inUse.remove(id);
+        File dir = new File(new File(filesDir, DIR), id);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * Hands a journal over to recovery, e.g. after its transcription failed.
+     */
+    public static void abandon(String id) {
+        if (id != null) {
+            inUse.remove(id);
+        }
+    }
+
+    /**
+     * Journals on disk that no part of this process is working on, newest first.
+     */
+    public static List<Unfinished> findUnfinished(File filesDir) {
+        List<Unfinished> result = new ArrayList<>();
+        File[] dirs = new File(filesDir, DIR).listFiles();
+        if (dirs == null) return result;
+
+        Arrays.sort(dirs);
+        for (int i = dirs.length - 1; i >= 0; i--) {
+            File dir = dirs[i];
+            if (!dir.isDirectory() || inUse.contains(dir.getName())) continue;
+            try {
+                Unfinished unfinished = Unfinished.load(dir);
+                if (unfinished != null) {
+                    result.add(unfinished);
+                } else {
+                    discard(filesDir, dir.getName()); // nothing captured
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "RecordingJournal: unreadable journal " + dir.getName() + ": " + e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    private void rollSegment() throws IOException {
+        closeSegment();
+        segmentNumber++;
+        File file = segmentFile(dir, segmentNumber);
+        segmentFile = new FileOutputStream(file);
+        segment = new BufferedOutputStream(segmentFile, 16 * 1024);
+        segment.write(WavFormat.header(sampleRate, 1, 0));
+        segmentWritten = 0;
+    }
+
+    private void closeSegment() throws IOException {
+        if (segment == null) return;
+        segment.flush();
+        segmentFile.getFD().sync();
+        segment.close();
+        segment = null;
+        WavFormat.finalizeHeader(segmentFile(dir, segmentNumber), sampleRate, 1);
+        appendIndex("segment " + segmentNumber + " " + segmentWritten);
+    }
+
+    private void appendIndex(String line) throws IOException {
+        index.write((line + "\n").getBytes("UTF-8"));
+        index.getFD().sync();
+    }
+
+    private static File segmentFile(File dir, int number) {
+        return new File(dir, String.format("seg_%04d.wav", number));
+    }
+
+    /**
+     * A journal left behind by a killed process or a failed transcription.
+     */
+    public static class Unfinished {
+        private final File dir;
+        private final int sampleRate;
+        private final List<File> segments;
+        private final long dataBytes;
+
+        private Unfinished(File dir, int sampleRate, List<File> segments, long dataBytes) {
+            this.dir = dir;
+            this.sampleRate = sampleRate;
+            this.segments = segments;
+            this.dataBytes = dataBytes;
+        }
+
+        static Unfinished load(File dir) throws IOException {
+            int sampleRate = -1;
+            BufferedReader reader = new BufferedReader(new FileReader(new File(dir, INDEX)));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("rate ")) {
+                        sampleRate = Integer.parseInt(line.substring(5).trim());
+                    }
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad index");
+            } finally {
+                reader.close();
+            }
+            if (sampleRate <= 0) {
+                throw new IOException("Index has no sample rate");
+            }
+
+            // The index only lists closed segments; the files also include the one open at a crash
+            List<File> segments = new ArrayList<>();
+            long dataBytes = 0;
+            for (int number = 0; ; number++) {
+                File file = segmentFile(dir, number);
+                if (!file.exists()) break;
+                long bytes = (file.length() - WavFormat.HEADER_SIZE) & ~1L;
+                if (bytes <= 0) continue;
+                segments.add(file);
+                dataBytes += bytes;
+            }
+            return segments.isEmpty() ? null : new Unfinished(dir, sampleRate, segments, dataBytes);
+        }
+
+        public String getId() {
+            return dir.getName();
+        }
+
+        public long getDurationMillis() {
+            return WavFormat.samplesToMillis(dataBytes / 2, sampleRate);
+        }
+
+        /**
+         * Joins the segments into one WAV in {@code outputDir}, ready to transcribe.
+         */
+        public File assemble(File outputDir) throws IOException {
+            File out = new File(outputDir, "voice_recovered_" + getId() + ".wav");
+            OutputStream stream = new BufferedOutputStream(new FileOutputStream(out), 64 * 1024);
+            byte[] buffer = new byte[64 * 1024];
+            try {
+                stream.write(WavFormat.header(sampleRate, 1, dataBytes));
+                for (File segment : segments) {
+                    long remaining = (segment.length() - WavFormat.HEADER_SIZE) & ~1L;
+                    InputStream in = new FileInputStream(segment);
+                    try {
+                        long skipped = 0;
+                        while (skipped < WavFormat.HEADER_SIZE) {
+                            skipped += in.skip(WavFormat.HEADER_SIZE - skipped);
+                        }
+                        int read;
+                        while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                            stream.write(buffer, 0, read);
+                            remaining -= read;
+                        }
+                    } finally {
+                        in.close();
+                    }
+                }
+            } finally {
+                stream.close();
+            }
+            // Claimed by whoever transcribes it, so it isn't offered twice
+            inUse.add(getId());
+            return out;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.fastkeyboard;
+
+import android.os.SystemClock;
+
+/**
+ * Per-recording measurements filled in by the capture pipeline. Fields are written
+ * by recorder threads and read from the UI, hence volatile.
+ */
+public class RecordingSession {
+    private final String engine;
+    private final int sampleRate;
+    private final String format;
+    private final long startedAt = System.currentTimeMillis();
+    private final long requestedAtElapsed = SystemClock.elapsedRealtime();
+
+    private volatile long startLatencyMillis = -1;
+    private volatile long capturedMillis = 0;
+    private volatile long trimmedMillis = 0;
+    private volatile boolean speechDetected = true;
+    private volatile String journalId;
+    private volatile AudioQualityAnalyzer.Report quality;
+
+    // Active (unpaused) time: counted in samples on the PCM path, on the monotonic
+    // clock for MediaRecorder. Replaced by capturedMillis once the recording stops.
+    private volatile long activeSamples = 0;
+    private volatile boolean stopped = false;
+    private volatile long handedOverAtElapsed = 0;
+    private long clockActiveMillis = 0;
+    private long clockResumedAt = -1;
+
+    public RecordingSession(String engine, int sampleRate, String format) {
+        this.engine = engine;
+        this.sampleRate = sampleRate;
+        this.format = format;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /** Codec and rate of the output file, e.g. "Opus 24kbps" or "WAV 16kHz". */
+    public String getFormat() {
+        return format;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * Time from the start request to the first captured sample, or -1 until it
+     * arrives. 0 when pre-roll audio from before the request was already flowing.
+     */
+    public long getStartLatencyMillis() {
+        return startLatencyMillis;
+    }
+
+    /** Records the start latency; only the first call counts. */
+    void markFirstSample() {
+        if (startLatencyMillis < 0) {
+            startLatencyMillis = Math.max(0, SystemClock.elapsedRealtime() - requestedAtElapsed);
+        }
+    }
+
+    /** Marks when the keyboard got the finished recording; upload latency counts from here. */
+    public void markHandedOver() {
+        handedOverAtElapsed = SystemClock.elapsedRealtime();
+    }
+
+    /** {@link SystemClock#elapsedRealtime()} at {@link #markHandedOver()}, or 0 before it. */
+    public long getHandedOverAt() {
+        return handedOverAtElapsed;
+    }
+
+    /** Audio captured before any silence trimming. */
+    public long getCapturedMillis() {
+        return capturedMillis;
+    }
+
+    void setCapturedMillis(long capturedMillis) {
+        this.capturedMillis = capturedMillis;
+        stopped = true;
+    }
+
+    /**
+     * Recorded time excluding pauses: live while recording, equal to
+     * {@link #getCapturedMillis()} once stopped. Drives the recording timer and is
+     * what per-minute transcription pricing is charged on.
+     */
+    public long getActiveMillis() {
+        if (stopped) {
+            return capturedMillis;
+        }
+        if (AudioRecorder.ENGINE_AUDIO_RECORD.equals(engine)) {
+            return WavFormat.samplesToMillis(activeSamples, sampleRate);
+        }
+        synchronized (this) {
+            long running = clockResumedAt >= 0 ? SystemClock.elapsedRealtime() - clockResumedAt : 0;
+            return clockActiveMillis + running;
+        }
+    }
+
+    /** Samples that passed the pause gate so far. Capture thread only. */
+    void setActiveSamples(long samples) {
+        activeSamples = samples;
+    }
+
+    /** Starts the active clock for engines that don't report samples. */
+    synchronized void clockResumed() {
+        if (clockResumedAt < 0) {
+            clockResumedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    synchronized void clockPaused() {
+        if (clockResumedAt >= 0) {
+            clockActiveMillis += SystemClock.elapsedRealtime() - clockResumedAt;
+            clockResumedAt = -1;
+        }
+    }
+
+    /** Silence removed by the VAD stage; 0 when trimming is off. */
+    public long getTrimmedMillis() {
+        return trimmedMillis;
+    }
+
+    void setTrimmedMillis(long trimmedMillis) {
+        this.trimmedMillis = trimmedMillis;
+    }
+
+    /** False when trimming was on and the VAD never heard speech. */
+    public boolean isSpeechDetected() {
+        return speechDetected;
+    }
+
+    void setSpeechDetected(boolean speechDetected) {
+        this.speechDetected = speechDetected;
+    }
+
+    /** The {@link RecordingJournal} holding a crash-safe copy, or null when not journaled. */
+    public String getJournalId() {
+        return journalId;
+    }
+
+    void setJournalId(String journalId) {
+        this.journalId = journalId;
+    }
+
+    /**
+     * Speech, clipping and SNR measured over the captured audio, or null when the
+     * engine doesn't expose PCM (MediaRecorder).
+     */
+    public AudioQualityAnalyzer.Report getQuality() {
+        return quality;
+    }
+
+    void setQuality(AudioQualityAnalyzer.Report quality) {
+        this.quality = quality;
+    }
+}
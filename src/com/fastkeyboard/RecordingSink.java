@@ -0,0 +1,253 @@
+package com.fastkeyboard;
+
+import android.util.Log;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recording output held in a chain of pooled direct ByteBuffers instead of a cache
+ * file, so the uploader reads the audio straight from memory. Once a recording grows
+ * past its spill threshold, everything so far is written to the file it stands for
+ * and the rest goes to disk as usual.
+ *
+ * Recordings stay addressed by their File. {@link #openStream(File)},
+ * {@link #length(File)} and {@link #delete(File)} cover both in-memory and on-disk
+ * audio, so callers don't need to know where a recording ended up.
+ */
+public class RecordingSink extends OutputStream {
+    private static final String TAG = "VoiceKeyboard";
+    private static final int CHUNK_BYTES = 64 * 1024;
+    // Chunks kept for the next recording instead of being left to the GC (4 MB)
+    private static final int MAX_POOLED_CHUNKS = 64;
+
+    private static final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>();
+    private static final Map<String, RecordingSink> sinks = new HashMap<>();
+
+    private final File file;
+    private final long spillThreshold;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private long length = 0;
+    private OutputStream spillOut;
+    private boolean spilled = false;
+
+    private RecordingSink(File file, long spillThreshold) {
+        this.file = file;
+        this.spillThreshold = spillThreshold;
+    }
+
+    /**
+     * Starts an in-memory recording standing in for {@code file}.
+     *
+     * @param spillThresholdBytes size above which the recording moves to {@code file} on disk
+     */
+    public static RecordingSink create(File file, long spillThresholdBytes) {
+        RecordingSink sink = new RecordingSink(file, spillThresholdBytes);
+        synchronized (sinks) {
+            sinks.put(file.getAbsolutePath(), sink);
+        }
+        return sink;
+    }
+
+    /**
+     * Reads a recording from memory when it is held there, otherwise from disk.
+     */
+    public static InputStream openStream(File file) throws IOException {
+        RecordingSink sink = find(file);
+        return sink != null ? sink.newInputStream() : new FileInputStream(file);
+    }
+
+    public static long length(File file) {
+        RecordingSink sink = find(file);
+        return sink != null ? sink.length() : file.length();
+    }
+
+    /**
+     * Frees the memory behind a recording and deletes any on-disk copy.
+     */
+    public static boolean delete(File file) {
+        RecordingSink sink;
+        synchronized (sinks) {
+            sink = sinks.remove(file.getAbsolutePath());
+        }
+        if (sink != null) {
+            sink.releaseChunks();
+        }
+        return file.delete() || sink != null;
+    }
+
+    /**
+     * Makes sure the recording exists as a real file, for consumers that need random
+     * access to it (e.g. {@link DictationSegmenter}).
+     */
+    public static void materialize(File file) throws IOException {
+        RecordingSink sink = find(file);
+        if (sink != null) {
+            sink.spillToDisk();
+            sink.close();
+        }
+    }
+
+    private static RecordingSink find(File file) {
+        synchronized (sinks) {
+            return sinks.get(file.getAbsolutePath());
+        }
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        if (spilled || length + 1 > spillThreshold) {
+            spillToDisk();
+            spillOut.write(b);
+        } else {
+            currentChunk().put((byte) b);
+        }
+        length++;
+    }
+
+    @Override
+    public synchronized void write(byte[] src, int offset, int count) throws IOException {
+        if (spilled || length + count > spillThreshold) {
+            spillToDisk();
+            spillOut.write(src, offset, count);
+            length += count;
+            return;
+        }
+        length += count;
+        while (count > 0) {
+            ByteBuffer chunk = currentChunk();
+            int n = Math.min(count, chunk.remaining());
+            chunk.put(src, offset, n);
+            offset += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (spillOut != null) {
+            spillOut.close();
+            spillOut = null;
+        }
+    }
+
+    public synchronized long length() {
+        return length;
+    }
+
+    public synchronized boolean isSpilled() {
+        return spilled;
+    }
+
+    /**
+     * Overwrites bytes already written, e.g. a WAV header once the length is known.
+     * Call after {@link #close()}.
+     */
+    public synchronized void patch(long position, byte[] data) throws IOException {
+        if (spilled) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.seek(position);
+                raf.write(data);
+            } finally {
+                raf.close();
+            }
+            return;
+        }
+        for (int i = 0; i < data.length; i++) {
+            long at = position + i;
+            chunks.get((int) (at / CHUNK_BYTES)).put((int) (at % CHUNK_BYTES), data[i]);
+        }
+    }
+
+    private synchronized InputStream newInputStream() throws IOException {
+        if (spilled) {
+            return new FileInputStream(file);
+        }
+        final List<ByteBuffer> views = new ArrayList<>(chunks.size());
+        for (ByteBuffer chunk : chunks) {
+            ByteBuffer view = chunk.duplicate();
+            view.flip();
+            views.add(view);
+        }
+        return new InputStream() {
+            private int index = 0;
+
+            @Override
+            public int read() {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] dst, int offset, int count) {
+                while (index < views.size() && !views.get(index).hasRemaining()) {
+                    index++;
+                }
+                if (index >= views.size()) {
+                    return -1;
+                }
+                ByteBuffer view = views.get(index);
+                int n = Math.min(count, view.remaining());
+                view.get(dst, offset, n);
+                return n;
+            }
+        };
+    }
+
+    private ByteBuffer currentChunk() {
+        ByteBuffer last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (last != null && last.hasRemaining()) {
+            return last;
+        }
+        ByteBuffer chunk;
+        synchronized (pool) {
+            chunk = pool.poll();
+        }
+        if (chunk == null) {
+            chunk = ByteBuffer.allocateDirect(CHUNK_BYTES);
+        }
+        chunk.clear();
+        chunks.add(chunk);
+        return chunk;
+    }
+
+    private synchronized void spillToDisk() throws IOException {
+        if (spilled) return;
+
+        spillOut = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        byte[] copy = new byte[CHUNK_BYTES];
+        for (ByteBuffer chunk : chunks) {
+            ByteBuffer view = chunk.duplicate();
+            view.flip();
+            int n = view.remaining();
+            view.get(copy, 0, n);
+            spillOut.write(copy, 0, n);
+        }
+        releaseChunks();
+        spilled = true;
+        Log.d(TAG, "RecordingSink: " + file.getName() + " spilled to disk at " + length + " bytes");
+    }
+
+    private synchronized void releaseChunks() {
+        synchronized (pool) {
+            for (ByteBuffer chunk : chunks) {
+                if (pool.size() < MAX_POOLED_CHUNKS) {
+                    pool.push(chunk);
+                }
+            }
+        }
+        chunks.clear();
+    }
+}
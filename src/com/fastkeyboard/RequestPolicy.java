@@ -0,0 +1,294 @@
+package com.fastkeyboard;
+
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * Timeouts, an overall deadline and retries for API requests.
+ *
+ * Each attempt gets connect and read timeouts, clamped to what is left of the
+ * deadline. When the deadline passes mid-attempt the connection is disconnected, so
+ * nothing can hold "Processing..." longer than the deadline. The deadline covers
+ * connecting, sending and waiting for the status line; reading the body is bounded
+ * by the read timeout.
+ *
+ * 5xx, 429 and I/O errors are retried with exponential backoff and jitter, as long
+ * as the deadline leaves room for another try. An I/O error only counts while the
+ * request body is still being sent: once the server has the whole body it may be
+ * working on it, and sending it again would pay for the same audio twice, so a
+ * read timeout or reset after {@link Attempt#sent} fails at once.
+ */
+public class RequestPolicy {
+    private static final String TAG = "VoiceKeyboard";
+    private static final long BACKOFF_BASE_MS = 500;
+    private static final long BACKOFF_CAP_MS = 8000;
+    // Not worth starting an attempt with less time than this left
+    private static final long MIN_ATTEMPT_MS = 2000;
+
+    /** File uploads to the transcription API. Long audio can take a while to process. */
+    public static final RequestPolicy TRANSCRIPTION = new RequestPolicy("Transcription", 3, 120000, 10000, 60000);
+    /**
+     * Uploads fed from the live recording. The audio is consumed as it is sent, so
+     * there is no retry and no deadline (the upload lasts as long as the recording);
+     * the caller falls back to uploading the file instead.
+     */
+    public static final RequestPolicy STREAMING = new RequestPolicy("Streaming", 1, 0, 10000, 60000);
+    /** ChatGPT improve and edit requests. */
+    public static final RequestPolicy CHAT = new RequestPolicy("Chat", 3, 90000, 10000, 45000);
+
+    private static final RequestPolicy[] ALL = {TRANSCRIPTION, STREAMING, CHAT};
+    private static final Random random = new Random();
+    private static Timer watchdog;
+
+    private final String name;
+    private final int maxAttempts;
+    private final long deadlineMs;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong succeededAfterRetry = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+
+    /** One try at a request. Return normally for any answer that shouldn't be retried. */
+    public interface Request<T> {
+        T run(Attempt attempt) throws IOException;
+    }
+
+    /** Thrown by {@link Attempt#checkStatus} for a response worth trying again. */
+    public static class RetryableStatusException extends IOException {
+        final long retryAfterMs;
+
+        RetryableStatusException(int code, String body, long retryAfterMs) {
+            super("HTTP Error " + code + ": " + body);
+            this.retryAfterMs = retryAfterMs;
+        }
+    }
+
+    /** Timeouts and deadline for one attempt. */
+    public static class Attempt {
+        private final int number;
+        private final int connectTimeoutMs;
+        private final int readTimeoutMs;
+        private final boolean last;
+        private volatile HttpURLConnection connection;
+        private volatile boolean expired;
+        private boolean errorStatus;
+        private boolean sent;
+
+        Attempt(int number, int connectTimeoutMs, int readTimeoutMs, boolean last) {
+            this.number = number;
+            this.connectTimeoutMs = connectTimeoutMs;
+            this.readTimeoutMs = readTimeoutMs;
+            this.last = last;
+        }
+
+        /** Applies this attempt's timeouts and puts the connection under the deadline. */
+        public HttpURLConnection configure(HttpURLConnection conn) {
+            conn.setConnectTimeout(connectTimeoutMs);
+            conn.setReadTimeout(readTimeoutMs);
+            connection = conn;
+            if (expired) {
+                conn.disconnect();
+            }
+            return conn;
+        }
+
+        /**
+         * Throws {@link RetryableStatusException} for 5xx and 429 when another attempt
+         * may follow, after draining the error body so the socket can be reused. On the
+         * last attempt it returns, and the caller reports the status as usual.
+         */
+        public void checkStatus(HttpURLConnection conn, int code) throws IOException {
+            errorStatus = code >= 400;
+            if (last || !isRetryable(code)) return;
+            String body = "";
+            InputStream error = conn.getErrorStream();
+            if (error != null) {
+                byte[] bytes = new byte[512];
+                int length = error.read(bytes);
+                body = length > 0 ? new String(bytes, 0, length, "UTF-8") : "";
+                ConnectionManager.drain(error);
+            }
+            throw new RetryableStatusException(code, body, parseRetryAfter(conn.getHeaderField("Retry-After")));
+        }
+
+        /** Call once the request body is fully written; later I/O errors are not retried. */
+        public void sent() {
+            sent = true;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        void expire() {
+            expired = true;
+            HttpURLConnection conn = connection;
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    private RequestPolicy(String name, int maxAttempts, long deadlineMs, int connectTimeoutMs, int readTimeoutMs) {
+        this.name = name;
+        this.maxAttempts = maxAttempts;
+        this.deadlineMs = deadlineMs;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    /**
+     * Runs {@code request} until it returns, fails in a way retrying won't fix, runs
+     * out of attempts or passes the deadline. Blocks the calling (network) thread
+     * during backoff.
+     */
+    public <T> T execute(String what, Request<T> request) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        long deadline = deadlineMs > 0 ? start + deadlineMs : Long.MAX_VALUE;
+        for (int number = 1; ; number++) {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            boolean last = number >= maxAttempts || remaining < 2 * MIN_ATTEMPT_MS;
+            final Attempt attempt = new Attempt(number, clamp(connectTimeoutMs, remaining),
+                    clamp(readTimeoutMs, remaining), last);
+            TimerTask expiry = null;
+            if (deadline != Long.MAX_VALUE) {
+                expiry = new TimerTask() {
+                    @Override
+                    public void run() {
+                        attempt.expire();
+                    }
+                };
+                watchdog().schedule(expiry, Math.max(1, remaining));
+            }
+
+            IOException failure;
+            long retryAfterMs = 0;
+            try {
+                T result = request.run(attempt);
+                if (attempt.errorStatus) {
+                    // Answered, but with an error the caller reports
+                    failed.incrementAndGet();
+                    return result;
+                }
+                succeeded.incrementAndGet();
+                if (number > 1) {
+                    succeededAfterRetry.incrementAndGet();
+                    Log.d(TAG, "RequestPolicy: " + what + " succeeded on attempt " + number);
+                }
+                return result;
+            } catch (RetryableStatusException e) {
+                failure = e;
+                retryAfterMs = e.retryAfterMs;
+            } catch (IOException e) {
+                if (attempt.expired) {
+                    timedOut.incrementAndGet();
+                    Log.w(TAG, "RequestPolicy: " + what + " passed its " + deadlineMs / 1000 + " s deadline");
+                    throw new SocketTimeoutException("No answer within " + deadlineMs / 1000 + " s");
+                }
+                if (last || attempt.sent || !isRetryable(e)) {
+                    if (attempt.sent && !last) {
+                        Log.w(TAG, "RequestPolicy: " + what + " failed after its body was sent, not retried: " + e);
+                    }
+                    failed.incrementAndGet();
+                    throw e;
+                }
+                failure = e;
+            } finally {
+                if (expiry != null) {
+                    expiry.cancel();
+                }
+            }
+
+            long delay = Math.max(backoff(number), retryAfterMs);
+            remaining = deadline - SystemClock.elapsedRealtime();
+            if (delay + MIN_ATTEMPT_MS > remaining) {
+                failed.incrementAndGet();
+                throw failure;
+            }
+            retries.incrementAndGet();
+            Log.w(TAG, "RequestPolicy: " + what + " attempt " + number + " failed (" + failure.getMessage()
+                    + "), retrying in " + delay + " ms");
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed.incrementAndGet();
+                throw new InterruptedIOException("Interrupted before retrying " + what);
+            }
+        }
+    }
+
+    /** One line per policy, e.g. "Transcription: 40 ok (3 after retry), 1 failed, 0 timed out, 4 retries". */
+    public static String stats() {
+        StringBuilder stats = new StringBuilder();
+        for (RequestPolicy policy : ALL) {
+            if (stats.length() > 0) stats.append('\n');
+            stats.append(String.format(Locale.getDefault(), "%s: %d ok (%d after retry), %d failed, %d timed out, %d retries",
+                    policy.name, policy.succeeded.get(), policy.succeededAfterRetry.get(), policy.failed.get(),
+                    policy.timedOut.get(), policy.retries.get()));
+        }
+        return stats.toString();
+    }
+
+    static boolean isRetryable(int code) {
+        return code >= 500 || code == 429;
+    }
+
+    // Errors that another attempt a second later would hit again
+    private static boolean isRetryable(IOException e) {
+        return !(e instanceof UnknownHostException
+                || e instanceof MalformedURLException
+                || e instanceof ProtocolException
+                || e instanceof SSLPeerUnverifiedException
+                || e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException));
+    }
+
+    // Exponential with "equal jitter": half the window fixed, half random, so clients
+    // that failed together don't retry together
+    private static long backoff(int failedAttempts) {
+        long window = Math.min(BACKOFF_CAP_MS, BACKOFF_BASE_MS << (failedAttempts - 1));
+        synchronized (random) {
+            return window / 2 + (long) (random.nextDouble() * (window / 2));
+        }
+    }
+
+    // Delta-seconds form only; an HTTP date is rare from these APIs
+    static long parseRetryAfter(String value) {
+        if (value == null) return 0;
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int clamp(int timeoutMs, long remainingMs) {
+        // 0 would mean "no timeout"
+        return (int) Math.max(1, Math.min(timeoutMs, remainingMs));
+    }
+
+    private static synchronized Timer watchdog() {
+        if (watchdog == null) {
+            watchdog = new Timer("RequestDeadline", true);
+        }
+        return watchdog;
+    }
+}
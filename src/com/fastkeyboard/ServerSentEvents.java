@@ -0,0 +1,56 @@
+package com.fastkeyboard;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Reads a {@code text/event-stream} body one event at a time, as each arrives.
+ *
+ * Only {@code data} fields matter to the APIs used here: multi-line data is joined
+ * with newlines, comments and the {@code event}, {@code id} and {@code retry} fields
+ * are ignored. An event cut off by the end of the stream is dropped, as the spec
+ * says.
+ */
+public class ServerSentEvents {
+    private final BufferedReader reader;
+
+    public ServerSentEvents(InputStream in) throws IOException {
+        // Line-at-a-time is how the format is defined; readLine takes \n, \r\n and \r
+        reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    }
+
+    /** Data of the next event, blocking until it is complete; null at the end of the stream. */
+    public String next() throws IOException {
+        StringBuilder data = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                if (data != null) {
+                    return data.toString();
+                }
+                continue;
+            }
+            if (line.charAt(0) == ':') {
+                continue; // comment, e.g. a keep-alive
+            }
+            int colon = line.indexOf(':');
+            String field = colon >= 0 ? line.substring(0, colon) : line;
+            if (!field.equals("data")) {
+                continue;
+            }
+            String value = colon >= 0 ? line.substring(colon + 1) : "";
+            if (value.startsWith(" ")) {
+                value = value.substring(1);
+            }
+            if (data == null) {
+                data = new StringBuilder(value.length());
+            } else {
+                data.append('\n');
+            }
+            data.append(value);
+        }
+        return null;
+    }
+}
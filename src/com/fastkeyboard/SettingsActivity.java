@@ -10,6 +10,7 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.animation.AccelerateDecelerateInterpolator;
+import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
@@ -18,6 +19,8 @@ import android.widget.ScrollView;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
+import java.io.File;
+import java.io.IOException;
 
 public class SettingsActivity extends Activity {
     private static final String PREFS_NAME = "VoiceKeyboardPrefs";
@@ -26,12 +29,51 @@ public class SettingsActivity extends Activity {
     private static final String KEY_TRANSCRIPTION_PROMPT = "transcription_prompt";
     private static final String KEY_AUDIO_QUALITY = "audio_quality";
     private static final String KEY_WHISPER_MODEL = "whisper_model";
+    private static final String KEY_AUDIO_ENGINE = "audio_engine";
+    private static final String KEY_STREAM_UPLOAD = "stream_upload";
+    private static final String KEY_TRIM_SILENCE = "trim_silence";
+    private static final String KEY_HANDS_FREE = "hands_free";
+    private static final String KEY_ENDPOINT_THRESHOLD_DB = "endpoint_threshold_db";
+    private static final String KEY_ENDPOINT_HANG_MS = "endpoint_hang_ms";
+    private static final String KEY_SEGMENT_PARALLELISM = "segment_parallelism";
+    private static final String KEY_PRE_ROLL = "pre_roll";
+    private static final String KEY_MEMORY_SINK_BYTES = "memory_sink_bytes";
+    private static final String KEY_CRASH_SAFE = "crash_safe_recording";
+    private static final String KEY_QUALITY_GATE = "quality_gate";
+    private static final String KEY_LATENCY_TRACE = "latency_trace";
+    private static final String KEY_STREAM_RESULTS = "stream_results";
+    private static final String KEY_SECOND_API_URL = "second_api_url";
+    private static final String KEY_SECOND_API_KEY = "second_api_key";
+    private static final String KEY_SECOND_MODEL = "second_model";
+
+    private static final int[] ENDPOINT_THRESHOLDS_DB = {-50, -45, -40, -35, -30};
+    private static final int[] ENDPOINT_HANG_TIMES_MS = {800, 1200, 1600, 2000, 3000};
+    private static final int[] SEGMENT_PARALLELISM = {0, 2, 4};
+    private static final int[] MEMORY_SINK_BYTES = {0, 2 * 1024 * 1024, 8 * 1024 * 1024, 32 * 1024 * 1024};
 
     private EditText urlInput;
     private EditText keyInput;
+    private EditText secondUrlInput;
+    private EditText secondKeyInput;
+    private EditText secondModelInput;
     private EditText transcriptionPromptInput;
     private Spinner qualitySpinner;
     private Spinner modelSpinner;
+    private Spinner engineSpinner;
+    private TextView engineSummaryText;
+    private Spinner uploadModeSpinner;
+    private Spinner trimSilenceSpinner;
+    private Spinner handsFreeSpinner;
+    private Spinner thresholdSpinner;
+    private Spinner hangTimeSpinner;
+    private Spinner segmentSpinner;
+    private Spinner preRollSpinner;
+    private Spinner memorySinkSpinner;
+    private Spinner crashSafeSpinner;
+    private Spinner qualityGateSpinner;
+    private Spinner latencyTraceSpinner;
+    private Spinner streamResultsSpinner;
+    private TextView encodingStatsText;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -120,6 +162,43 @@ public class SettingsActivity extends Activity {
 
         addVerticalSpace(apiCard, 16);
 
+        // A second OpenAI-compatible server; each dictation goes to whichever answers faster
+        TextView secondUrlLabel = new TextView(this);
+        secondUrlLabel.setText("Second API URL (optional)");
+        secondUrlLabel.setTextSize(14);
+        secondUrlLabel.setTextColor(Color.parseColor("#CCCCCC"));
+        secondUrlLabel.setPadding(0, 0, 0, 8);
+        apiCard.addView(secondUrlLabel);
+
+        secondUrlInput = createInput("https://api.groq.com/openai/v1/audio/transcriptions");
+        apiCard.addView(secondUrlInput);
+
+        addVerticalSpace(apiCard, 16);
+
+        TextView secondKeyLabel = new TextView(this);
+        secondKeyLabel.setText("Second API Key");
+        secondKeyLabel.setTextSize(14);
+        secondKeyLabel.setTextColor(Color.parseColor("#CCCCCC"));
+        secondKeyLabel.setPadding(0, 0, 0, 8);
+        apiCard.addView(secondKeyLabel);
+
+        secondKeyInput = createInput("gsk_...");
+        apiCard.addView(secondKeyInput);
+
+        addVerticalSpace(apiCard, 16);
+
+        TextView secondModelLabel = new TextView(this);
+        secondModelLabel.setText("Second API Model");
+        secondModelLabel.setTextSize(14);
+        secondModelLabel.setTextColor(Color.parseColor("#CCCCCC"));
+        secondModelLabel.setPadding(0, 0, 0, 8);
+        apiCard.addView(secondModelLabel);
+
+        secondModelInput = createInput("Same as the transcription model");
+        apiCard.addView(secondModelInput);
+
+        addVerticalSpace(apiCard, 16);
+
         Button saveApiBtn = createButton("💾 Save API Settings", "#4CAF50");
         saveApiBtn.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -171,12 +250,49 @@ public class SettingsActivity extends Activity {
         qualitySpinner = createSpinner(new String[]{
             "Low (16kHz, Mono, 128kbps)",
             "Medium (22kHz, Mono, 192kbps)",
-            "High (44kHz, Stereo, 256kbps)"
+            "High (44kHz, Stereo, 256kbps)",
+            "Voice (16kHz, Mono, Opus 24kbps)"
         });
         transcriptionCard.addView(qualitySpinner);
 
         addVerticalSpace(transcriptionCard, 16);
 
+        TextView engineLabel = new TextView(this);
+        engineLabel.setText("Recording Engine");
+        engineLabel.setTextSize(14);
+        engineLabel.setTextColor(Color.parseColor("#CCCCCC"));
+        engineLabel.setPadding(0, 0, 0, 8);
+        transcriptionCard.addView(engineLabel);
+
+        engineSpinner = createSpinner(new String[]{
+            "MediaRecorder (AAC .m4a)",
+            "AudioRecord (PCM .wav, mono)"
+        });
+        transcriptionCard.addView(engineSpinner);
+
+        // AudioRecord only takes the quality's sample rate, so say what else it ignores
+        engineSummaryText = new TextView(this);
+        engineSummaryText.setTextSize(12);
+        engineSummaryText.setTextColor(Color.parseColor("#AAAAAA"));
+        engineSummaryText.setPadding(0, 8, 0, 0);
+        engineSummaryText.setText("AudioRecord always records 16-bit mono WAV at the quality's sample rate; "
+            + "the bitrate, stereo and the Voice tier's Opus/HE-AAC codec apply to MediaRecorder only.");
+        engineSummaryText.setVisibility(View.GONE);
+        transcriptionCard.addView(engineSummaryText);
+        engineSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                engineSummaryText.setVisibility(position == 1 ? View.VISIBLE : View.GONE);
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+                engineSummaryText.setVisibility(View.GONE);
+            }
+        });
+
+        addVerticalSpace(transcriptionCard, 16);
+
         TextView modelLabel = new TextView(this);
         modelLabel.setText("Whisper Model");
         modelLabel.setTextSize(14);
@@ -187,7 +303,9 @@ public class SettingsActivity extends Activity {
         modelSpinner = createSpinner(new String[]{
             "whisper-1",
             "gpt-4o-audio-preview",
-            "gpt-4o-mini-audio-preview"
+            "gpt-4o-mini-audio-preview",
+            "gpt-4o-transcribe",
+            "gpt-4o-mini-transcribe"
         });
         transcriptionCard.addView(modelSpinner);
 
@@ -204,6 +322,245 @@ public class SettingsActivity extends Activity {
 
         mainLayout.addView(transcriptionCard);
 
+        // Latency & Performance Card
+        LinearLayout performanceCard = createCard("⚡ Latency & Performance");
+
+        TextView uploadModeLabel = new TextView(this);
+        uploadModeLabel.setText("Upload Mode");
+        uploadModeLabel.setTextSize(14);
+        uploadModeLabel.setTextColor(Color.parseColor("#CCCCCC"));
+        uploadModeLabel.setPadding(0, 0, 0, 8);
+        performanceCard.addView(uploadModeLabel);
+
+        uploadModeSpinner = createSpinner(new String[]{
+            "Upload after stop",
+            "Stream while recording (AudioRecord engine)"
+        });
+        performanceCard.addView(uploadModeSpinner);
+
+        addVerticalSpace(performanceCard, 16);
+
+        TextView trimLabel = new TextView(this);
+        trimLabel.setText("Silence Trimming");
+        trimLabel.setTextSize(14);
+        trimLabel.setTextColor(Color.parseColor("#CCCCCC"));
+        trimLabel.setPadding(0, 0, 0, 8);
+        performanceCard.addView(trimLabel);
+
+        trimSilenceSpinner = createSpinner(new String[]{
+            "Off",
+            "Trim dead air and long pauses (AudioRecord engine)"
+        });
+        performanceCard.addView(trimSilenceSpinner);
+
+        addVerticalSpace(performanceCard, 16);
+
+        TextView handsFreeLabel = new TextView(this);
+        handsFreeLabel.setText("Hands-free Mode");
+        handsFreeLabel.setTextSize(14);
+        handsFreeLabel.setTextColor(Color.parseColor("#CCCCCC"));
+        handsFreeLabel.setPadding(0, 0, 0, 8);
+        performanceCard.addView(handsFreeLabel);
+
+        handsFreeSpinner = createSpinner(new String[]{
+            "Off (tap Process to stop)",
+            "Auto-stop after silence (uses AudioRecord)"
+        });
+        performanceCard.addView(handsFreeSpinner);
+
+        addVerticalSpace(performanceCard, 16);
+
+        TextView thresholdLabel = new TextView(this);
+        thresholdLabel.setText("Silence Threshold");
+        thresholdLabel.setTextSize(14);
+        thresholdLabel.setTextColor(Color.parseColor("#CCCCCC"));
+        thresholdLabel.setPadding(0, 0, 0, 8);
+        performanceCard.addView(thresholdLabel);
+
+        thresholdSpinner = createSpinner(new String[]{
+            "-50 dBFS (very quiet room)",
+            "-45 dBFS (quiet room)",
+            "-40 dBFS (normal)",
+            "-35 dBFS (some background noise)",
+            "-30 dBFS (noisy)"
+        });
+        performanceCard.addView(thresholdSpinner);
+
+        addVerticalSpace(performanceCard, 16);
+
+        TextView hangTimeLabel = new TextView(this);
+        hangTimeLabel.setText("Stop After Silence Of");
+        hangTimeLabel.setTextSize(14);
+        hangTimeLabel.setTextColor(Color.parseColor("#CCCCCC"));
+        hangTimeLabel.setPadding(0, 0, 0, 8);
+        performanceCard.addView(hangTimeLabel);
+
+        hangTimeSpinner = createSpinner(new String[]{
+            "0.8 seconds",
+            "1.2 seconds",
+            "1.6 seconds",
+            "2 seconds",
+            "3 seconds"
+        });
+        performanceCard.addView(hangTimeSpinner);
+
+        addVerticalSpace(performanceCard, 16);
+
+        TextView segmentLabel = new TextView(this);
+        segmentLabel.setText("Long Dictation (over 1 minute, AudioRecord only)");
+        segmentLabel.setTextSize(14);
+        segmentLabel.setTextColor(Color.parseColor("#CCCCCC"));
+        segmentLabel.setPadding(0, 0, 0, 8);
+        performanceCard.addView(segmentLabel);
+
+        segmentSpinner = createSpinner(new String[]{
+            "Single upload",
+            "Split, 2 segments in parallel",
+            "Split, 4 segments in parallel"
+        });
+        performanceCard.addView(segmentSpinner);
+
+        addVerticalSpace(performanceCard, 16);
+
+        TextView preRollLabel = new TextView(this);
+        preRollLabel.setText("Pre-roll (keeps the mic open while the keyboard is shown)");
+        preRollLabel.setTextSize(14);
+        preRollLabel.setTextColor(Color.parseColor("#CCCCCC"));
+        preRollLabel.setPadding(0, 0, 0, 8);
+        performanceCard.addView(preRollLabel);
+
+        preRollSpinner = createSpinner(new String[]{
+            "Off (mic opens when you tap record)",
+            "On (include the 0.5s before the tap)"
+        });
+        performanceCard.addView(preRollSpinner);
+
+        addVerticalSpace(performanceCard, 16);
+
+        TextView memorySinkLabel = new TextView(this);
+        memorySinkLabel.setText("Recording Buffer (AudioRecord only)");
+        memorySinkLabel.setTextSize(14);
+        memorySinkLabel.setTextColor(Color.parseColor("#CCCCCC"));
+        memorySinkLabel.setPadding(0, 0, 0, 8);
+        performanceCard.addView(memorySinkLabel);
+
+        memorySinkSpinner = createSpinner(new String[]{
+            "File in cache folder",
+            "Memory, up to 2 MB (~1 min)",
+            "Memory, up to 8 MB (~4 min)",
+            "Memory, up to 32 MB (~17 min)"
+        });
+        performanceCard.addView(memorySinkSpinner);
+
+        addVerticalSpace(performanceCard, 16);
+
+        TextView crashSafeLabel = new TextView(this);
+        crashSafeLabel.setText("Crash-safe Recording");
+        crashSafeLabel.setTextSize(14);
+        crashSafeLabel.setTextColor(Color.parseColor("#CCCCCC"));
+        crashSafeLabel.setPadding(0, 0, 0, 8);
+        performanceCard.addView(crashSafeLabel);
+
+        crashSafeSpinner = createSpinner(new String[]{
+            "Off",
+            "On (recover dictations after the keyboard is closed or killed)"
+        });
+        performanceCard.addView(crashSafeSpinner);
+
+        addVerticalSpace(performanceCard, 16);
+
+        TextView qualityGateLabel = new TextView(this);
+        qualityGateLabel.setText("Empty or Unusable Recordings");
+        qualityGateLabel.setTextSize(14);
+        qualityGateLabel.setTextColor(Color.parseColor("#CCCCCC"));
+        qualityGateLabel.setPadding(0, 0, 0, 8);
+        performanceCard.addView(qualityGateLabel);
+
+        qualityGateSpinner = createSpinner(new String[]{
+            "Warn and upload anyway",
+            "Skip the upload (WAV recordings)"
+        });
+        performanceCard.addView(qualityGateSpinner);
+
+        addVerticalSpace(performanceCard, 16);
+
+        TextView streamResultsLabel = new TextView(this);
+        streamResultsLabel.setText("Live Transcript (gpt-4o-transcribe models)");
+        streamResultsLabel.setTextSize(14);
+        streamResultsLabel.setTextColor(Color.parseColor("#CCCCCC"));
+        streamResultsLabel.setPadding(0, 0, 0, 8);
+        performanceCard.addView(streamResultsLabel);
+
+        streamResultsSpinner = createSpinner(new String[]{
+            "Off (insert when complete)",
+            "On (show words as they arrive)"
+        });
+        performanceCard.addView(streamResultsSpinner);
+
+        addVerticalSpace(performanceCard, 16);
+
+        TextView statsLabel = new TextView(this);
+        statsLabel.setText("Upload Size vs. Latency by Format");
+        statsLabel.setTextSize(14);
+        statsLabel.setTextColor(Color.parseColor("#CCCCCC"));
+        statsLabel.setPadding(0, 0, 0, 8);
+        performanceCard.addView(statsLabel);
+
+        encodingStatsText = new TextView(this);
+        encodingStatsText.setTextSize(12);
+        encodingStatsText.setTextColor(Color.parseColor("#AAAAAA"));
+        encodingStatsText.setPadding(0, 0, 0, 8);
+        encodingStatsText.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                EncodingStats.reset(SettingsActivity.this);
+                encodingStatsText.setText(EncodingStats.report(SettingsActivity.this) + "\n" + TaskScheduler.stats()
+                    + "\n" + ConnectionManager.stats() + "\n" + RequestPolicy.stats()
+                    + "\n" + TranscriptCache.stats(SettingsActivity.this)
+                    + "\n" + TranscriptionRouter.stats(SettingsActivity.this));
+                Toast.makeText(SettingsActivity.this, "Upload stats cleared", Toast.LENGTH_SHORT).show();
+                return true;
+            }
+        });
+        performanceCard.addView(encodingStatsText);
+
+        addVerticalSpace(performanceCard, 16);
+
+        TextView traceLabel = new TextView(this);
+        traceLabel.setText("Latency Tracing");
+        traceLabel.setTextSize(14);
+        traceLabel.setTextColor(Color.parseColor("#CCCCCC"));
+        traceLabel.setPadding(0, 0, 0, 8);
+        performanceCard.addView(traceLabel);
+
+        latencyTraceSpinner = createSpinner(new String[]{
+            "Off",
+            "On (record stop-to-text spans)"
+        });
+        performanceCard.addView(latencyTraceSpinner);
+
+        Button exportTraceBtn = createButton("📤 Export Trace (Chrome/Perfetto JSON)", "#795548");
+        exportTraceBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                exportLatencyTrace();
+            }
+        });
+        performanceCard.addView(exportTraceBtn);
+
+        addVerticalSpace(performanceCard, 16);
+
+        Button savePerformanceBtn = createButton("💾 Save Performance Settings", "#FF9800");
+        savePerformanceBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                savePerformanceSettings();
+            }
+        });
+        performanceCard.addView(savePerformanceBtn);
+
+        mainLayout.addView(performanceCard);
+
         // Info Card
         LinearLayout infoCard = createCard("ℹ️ Information");
 
@@ -377,6 +734,24 @@ public class SettingsActivity extends Activity {
         return Color.rgb(red, green, blue);
     }
 
+    private EditText createInput(String hint) {
+        EditText input = new EditText(this);
+        input.setHint(hint);
+        input.setTextSize(12);
+        input.setTextColor(Color.WHITE);
+        input.setHintTextColor(Color.parseColor("#888888"));
+        input.setPadding(16, 16, 16, 16);
+        input.setSingleLine(true);
+
+        // Glassmorphism input field
+        GradientDrawable background = new GradientDrawable();
+        background.setColor(Color.parseColor("#33FFFFFF"));
+        background.setCornerRadius((int) (8 * getResources().getDisplayMetrics().density));
+        background.setStroke((int) (1 * getResources().getDisplayMetrics().density), Color.parseColor("#55FFFFFF"));
+        input.setBackground(background);
+        return input;
+    }
+
     private Spinner createSpinner(String[] items) {
         Spinner spinner = new Spinner(this);
         ArrayAdapter<String> adapter = new ArrayAdapter<>(this,
@@ -412,9 +787,13 @@ public class SettingsActivity extends Activity {
         String prompt = prefs.getString(KEY_TRANSCRIPTION_PROMPT, "Punctuate and then grammatically correct and improve the given recorded audio");
         String quality = prefs.getString(KEY_AUDIO_QUALITY, "Low");
         String model = prefs.getString(KEY_WHISPER_MODEL, "whisper-1");
+        String engine = prefs.getString(KEY_AUDIO_ENGINE, AudioRecorder.ENGINE_MEDIA_RECORDER);
 
         urlInput.setText(url);
         keyInput.setText(key);
+        secondUrlInput.setText(prefs.getString(KEY_SECOND_API_URL, ""));
+        secondKeyInput.setText(prefs.getString(KEY_SECOND_API_KEY, ""));
+        secondModelInput.setText(prefs.getString(KEY_SECOND_MODEL, ""));
         transcriptionPromptInput.setText(prompt);
 
         // Set quality spinner
@@ -422,6 +801,8 @@ public class SettingsActivity extends Activity {
             qualitySpinner.setSelection(1);
         } else if (quality.equals("High")) {
             qualitySpinner.setSelection(2);
+        } else if (quality.equals("Voice")) {
+            qualitySpinner.setSelection(3);
         } else {
             qualitySpinner.setSelection(0);
         }
@@ -431,9 +812,32 @@ public class SettingsActivity extends Activity {
             modelSpinner.setSelection(1);
         } else if (model.equals("gpt-4o-mini-audio-preview")) {
             modelSpinner.setSelection(2);
+        } else if (model.equals("gpt-4o-transcribe")) {
+            modelSpinner.setSelection(3);
+        } else if (model.equals("gpt-4o-mini-transcribe")) {
+            modelSpinner.setSelection(4);
         } else {
             modelSpinner.setSelection(0);
         }
+
+        // Set engine spinner
+        engineSpinner.setSelection(engine.equals(AudioRecorder.ENGINE_AUDIO_RECORD) ? 1 : 0);
+
+        // Performance settings
+        uploadModeSpinner.setSelection(prefs.getBoolean(KEY_STREAM_UPLOAD, false) ? 1 : 0);
+        trimSilenceSpinner.setSelection(prefs.getBoolean(KEY_TRIM_SILENCE, false) ? 1 : 0);
+        handsFreeSpinner.setSelection(prefs.getBoolean(KEY_HANDS_FREE, false) ? 1 : 0);
+        thresholdSpinner.setSelection(indexOf(ENDPOINT_THRESHOLDS_DB, prefs.getInt(KEY_ENDPOINT_THRESHOLD_DB, -40), 2));
+        hangTimeSpinner.setSelection(indexOf(ENDPOINT_HANG_TIMES_MS, prefs.getInt(KEY_ENDPOINT_HANG_MS, 1200), 1));
+        segmentSpinner.setSelection(indexOf(SEGMENT_PARALLELISM, prefs.getInt(KEY_SEGMENT_PARALLELISM, 0), 0));
+        preRollSpinner.setSelection(prefs.getBoolean(KEY_PRE_ROLL, false) ? 1 : 0);
+        memorySinkSpinner.setSelection(indexOf(MEMORY_SINK_BYTES, prefs.getInt(KEY_MEMORY_SINK_BYTES, 0), 0));
+        crashSafeSpinner.setSelection(prefs.getBoolean(KEY_CRASH_SAFE, false) ? 1 : 0);
+        qualityGateSpinner.setSelection(prefs.getBoolean(KEY_QUALITY_GATE, true) ? 1 : 0);
+        streamResultsSpinner.setSelection(prefs.getBoolean(KEY_STREAM_RESULTS, false) ? 1 : 0);
+        latencyTraceSpinner.setSelection(prefs.getBoolean(KEY_LATENCY_TRACE, false) ? 1 : 0);
+        encodingStatsText.setText(EncodingStats.report(this) + "\n" + TaskScheduler.stats() + "\n" + ConnectionManager.stats()
+                + "\n" + RequestPolicy.stats() + "\n" + TranscriptCache.stats(this) + "\n" + TranscriptionRouter.stats(this));
     }
 
     private void saveSettings() {
@@ -449,6 +853,10 @@ public class SettingsActivity extends Activity {
         SharedPreferences.Editor editor = prefs.edit();
         editor.putString(KEY_API_URL, url);
         editor.putString(KEY_API_KEY, key);
+        // Empty clears the second API
+        editor.putString(KEY_SECOND_API_URL, secondUrlInput.getText().toString().trim());
+        editor.putString(KEY_SECOND_API_KEY, secondKeyInput.getText().toString().trim());
+        editor.putString(KEY_SECOND_MODEL, secondModelInput.getText().toString().trim());
         editor.apply();
 
         Toast.makeText(this, "API settings saved!", Toast.LENGTH_SHORT).show();
@@ -458,6 +866,9 @@ public class SettingsActivity extends Activity {
         String prompt = transcriptionPromptInput.getText().toString().trim();
         String quality = qualitySpinner.getSelectedItem().toString();
         String model = modelSpinner.getSelectedItem().toString();
+        String engine = engineSpinner.getSelectedItemPosition() == 1
+            ? AudioRecorder.ENGINE_AUDIO_RECORD
+            : AudioRecorder.ENGINE_MEDIA_RECORDER;
 
         // Parse quality
         String qualityKey = "Low";
@@ -465,6 +876,8 @@ public class SettingsActivity extends Activity {
             qualityKey = "Medium";
         } else if (quality.startsWith("High")) {
             qualityKey = "High";
+        } else if (quality.startsWith("Voice")) {
+            qualityKey = "Voice";
         }
 
         SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
@@ -472,8 +885,62 @@ public class SettingsActivity extends Activity {
         editor.putString(KEY_TRANSCRIPTION_PROMPT, prompt);
         editor.putString(KEY_AUDIO_QUALITY, qualityKey);
         editor.putString(KEY_WHISPER_MODEL, model);
+        editor.putString(KEY_AUDIO_ENGINE, engine);
         editor.apply();
 
         Toast.makeText(this, "Transcription settings saved!", Toast.LENGTH_SHORT).show();
     }
+
+    private void exportLatencyTrace() {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+        File file = new File(dir, "latency_trace.json");
+        try {
+            LatencyTracer.exportChromeTrace(file);
+            Toast.makeText(this, "Trace saved to " + file.getAbsolutePath(), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Toast.makeText(this, "Export failed: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private void savePerformanceSettings() {
+        boolean streamUpload = uploadModeSpinner.getSelectedItemPosition() == 1;
+        boolean trimSilence = trimSilenceSpinner.getSelectedItemPosition() == 1;
+        boolean handsFree = handsFreeSpinner.getSelectedItemPosition() == 1;
+        boolean preRoll = preRollSpinner.getSelectedItemPosition() == 1;
+        boolean crashSafe = crashSafeSpinner.getSelectedItemPosition() == 1;
+
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putBoolean(KEY_STREAM_UPLOAD, streamUpload);
+        editor.putBoolean(KEY_TRIM_SILENCE, trimSilence);
+        editor.putBoolean(KEY_HANDS_FREE, handsFree);
+        editor.putBoolean(KEY_PRE_ROLL, preRoll);
+        editor.putBoolean(KEY_CRASH_SAFE, crashSafe);
+        editor.putBoolean(KEY_QUALITY_GATE, qualityGateSpinner.getSelectedItemPosition() == 1);
+        editor.putBoolean(KEY_STREAM_RESULTS, streamResultsSpinner.getSelectedItemPosition() == 1);
+        boolean latencyTrace = latencyTraceSpinner.getSelectedItemPosition() == 1;
+        editor.putBoolean(KEY_LATENCY_TRACE, latencyTrace);
+        LatencyTracer.setEnabled(latencyTrace);
+        editor.putInt(KEY_MEMORY_SINK_BYTES, MEMORY_SINK_BYTES[memorySinkSpinner.getSelectedItemPosition()]);
+        editor.putInt(KEY_ENDPOINT_THRESHOLD_DB, ENDPOINT_THRESHOLDS_DB[thresholdSpinner.getSelectedItemPosition()]);
+        editor.putInt(KEY_ENDPOINT_HANG_MS, ENDPOINT_HANG_TIMES_MS[hangTimeSpinner.getSelectedItemPosition()]);
+        editor.putInt(KEY_SEGMENT_PARALLELISM, SEGMENT_PARALLELISM[segmentSpinner.getSelectedItemPosition()]);
+        editor.apply();
+
+        if ((streamUpload || trimSilence) && !handsFree && !preRoll && !crashSafe && !prefs.getString(KEY_AUDIO_ENGINE, "").equals(AudioRecorder.ENGINE_AUDIO_RECORD)) {
+            Toast.makeText(this, "Streaming and trimming need the AudioRecord recording engine", Toast.LENGTH_LONG).show();
+        } else {
+            Toast.makeText(this, "Performance settings saved!", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private int indexOf(int[] values, int value, int fallback) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value) return i;
+        }
+        return fallback;
+    }
 }
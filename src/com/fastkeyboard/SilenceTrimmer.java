@@ -0,0 +1,165 @@
+package com.fastkeyboard;
+
+import java.io.IOException;
+
+/**
+ * Streaming PCM filter that drops leading and trailing silence and shortens long
+ * internal pauses, using {@link VoiceActivityDetector} decisions per 20 ms frame.
+ *
+ * Silence is held back only until the detector decides what it is, so memory is
+ * bounded by the pause/pad lengths no matter how long a pause lasts.
+ */
+public class SilenceTrimmer {
+    private static final int FRAME_MS = 20;
+
+    public interface Sink {
+        void write(short[] samples, int offset, int length) throws IOException;
+    }
+
+    private final Sink sink;
+    private final VoiceActivityDetector vad = new VoiceActivityDetector();
+    private final int frameSize;
+    private final int padSamples;
+    private final int keepHalf;
+
+    private final short[] frame;
+    private int frameFill = 0;
+
+    // Silence since the last speech frame: the first part in head, the newest part in the tail ring
+    private final short[] head;
+    private int headLength = 0;
+    private final short[] tail;
+    private int tailStart = 0;
+    private int tailLength = 0;
+    private long pendingCount = 0;
+
+    private boolean speechSeen = false;
+    private long removedSamples = 0;
+    private long inputSamples = 0;
+
+    /**
+     * @param padMs silence kept before the first and after the last speech
+     * @param maxPauseMs internal pauses longer than this are shortened to this length
+     */
+    public SilenceTrimmer(int sampleRate, int padMs, int maxPauseMs, Sink sink) {
+        this.sink = sink;
+        frameSize = sampleRate * FRAME_MS / 1000;
+        padSamples = sampleRate * padMs / 1000;
+        keepHalf = sampleRate * maxPauseMs / 2000;
+        frame = new short[frameSize];
+        head = new short[Math.max(keepHalf, padSamples)];
+        tail = new short[Math.max(keepHalf, padSamples)];
+    }
+
+    public void write(short[] samples, int offset, int length) throws IOException {
+        inputSamples += length;
+        while (length > 0) {
+            int count = Math.min(length, frameSize - frameFill);
+            System.arraycopy(samples, offset, frame, frameFill, count);
+            frameFill += count;
+            offset += count;
+            length -= count;
+            if (frameFill == frameSize) {
+                processFrame(frameSize);
+                frameFill = 0;
+            }
+        }
+    }
+
+    /**
+     * Ends the stream: any partial frame is classified and trailing silence beyond
+     * the pad is dropped.
+     */
+    public void finish() throws IOException {
+        if (frameFill > 0) {
+            processFrame(frameFill);
+            frameFill = 0;
+        }
+        if (speechSeen) {
+            int keep = Math.min(padSamples, headLength);
+            sink.write(head, 0, keep);
+            removedSamples += pendingCount - keep;
+        } else {
+            removedSamples += pendingCount;
+        }
+        clearPending();
+    }
+
+    public long getRemovedSamples() {
+        return removedSamples;
+    }
+
+    public long getInputSamples() {
+        return inputSamples;
+    }
+
+    public boolean isSpeechSeen() {
+        return speechSeen;
+    }
+
+    private void processFrame(int length) throws IOException {
+        if (!vad.isSpeech(frame, 0, length)) {
+            holdSilence(length);
+            return;
+        }
+
+        if (!speechSeen) {
+            // Leading silence: keep only the pad right before the first word
+            int keep = Math.min(padSamples, tailLength);
+            emitTail(keep);
+            removedSamples += pendingCount - keep;
+            speechSeen = true;
+        } else if (pendingCount > 0) {
+            if (pendingCount <= 2L * keepHalf) {
+                // Short pause: head and tail together hold all of it
+                sink.write(head, 0, headLength);
+                emitTail(tailLength);
+            } else {
+                int headKeep = Math.min(keepHalf, headLength);
+                int tailKeep = Math.min(keepHalf, tailLength);
+                sink.write(head, 0, headKeep);
+                emitTail(tailKeep);
+                removedSamples += pendingCount - headKeep - tailKeep;
+            }
+        }
+        clearPending();
+        sink.write(frame, 0, length);
+    }
+
+    private void holdSilence(int length) {
+        int offset = 0;
+        // Before any speech only the newest pad matters, so skip the head
+        if (speechSeen && headLength < head.length) {
+            int count = Math.min(length, head.length - headLength);
+            System.arraycopy(frame, 0, head, headLength, count);
+            headLength += count;
+            offset = count;
+        }
+        for (int i = offset; i < length; i++) {
+            int index = (tailStart + tailLength) % tail.length;
+            tail[index] = frame[i];
+            if (tailLength < tail.length) {
+                tailLength++;
+            } else {
+                tailStart = (tailStart + 1) % tail.length;
+            }
+        }
+        pendingCount += length;
+    }
+
+    private void emitTail(int count) throws IOException {
+        int start = (tailStart + tailLength - count) % tail.length;
+        int firstPart = Math.min(count, tail.length - start);
+        sink.write(tail, start, firstPart);
+        if (firstPart < count) {
+            sink.write(tail, 0, count - firstPart);
+        }
+    }
+
+    private void clearPending() {
+        headLength = 0;
+        tailStart = 0;
+        tailLength = 0;
+        pendingCount = 0;
+    }
+}
@@ -0,0 +1,155 @@
+package com.fastkeyboard;
+
+import android.os.Process;
+import android.util.Log;
+import java.util.Locale;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * App-wide home for work that used to get its own {@code new Thread}: API requests on
+ * a small network pool, file and recorder housekeeping on a background pool. Both
+ * have a fixed thread limit and a priority queue, so a burst of dictations queues up
+ * instead of spawning threads, and a transcription the user is waiting on overtakes
+ * a background improve.
+ *
+ * Tasks must not block waiting for other tasks on the same pool.
+ */
+public class TaskScheduler {
+    private static final String TAG = "VoiceKeyboard";
+    private static final int NETWORK_THREADS = 4;
+    private static final int BACKGROUND_THREADS = 2;
+    private static final long IDLE_SECONDS = 30;
+    // Queue waits longer than this are logged
+    private static final long SLOW_WAIT_MS = 100;
+
+    public enum Priority {
+        /** Result goes straight into the text field (transcription). */
+        INTERACTIVE,
+        /** User-started but not blocking typing (ChatGPT improve/edit). */
+        NORMAL,
+        /** Housekeeping nobody is waiting for (prepare, journal scans). */
+        BACKGROUND
+    }
+
+    private static final Pool network = new Pool("Network", NETWORK_THREADS, Process.THREAD_PRIORITY_DEFAULT);
+    private static final Pool background = new Pool("Background", BACKGROUND_THREADS, Process.THREAD_PRIORITY_BACKGROUND);
+
+    /** Runs a task that talks to a server. */
+    public static void network(Priority priority, String name, Runnable task) {
+        network.submit(priority, name, task);
+    }
+
+    /** Runs disk, recorder setup or post-processing work. */
+    public static void background(Priority priority, String name, Runnable task) {
+        background.submit(priority, name, task);
+    }
+
+    /** One line per pool: queued and running now, plus totals since start. */
+    public static String stats() {
+        return network.stats() + "\n" + background.stats();
+    }
+
+    private static class Pool {
+        private final String name;
+        private final ThreadPoolExecutor executor;
+        private final AtomicLong sequence = new AtomicLong();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger maxQueueDepth = new AtomicInteger();
+        private final AtomicLong maxWaitMillis = new AtomicLong();
+
+        Pool(final String name, int threads, final int threadPriority) {
+            this.name = name;
+            final AtomicInteger threadNumber = new AtomicInteger();
+            executor = new ThreadPoolExecutor(threads, threads, IDLE_SECONDS, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(threadPriority);
+                                    runnable.run();
+                                }
+                            }, name + "-" + threadNumber.incrementAndGet());
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        void submit(Priority priority, String taskName, Runnable task) {
+            executor.execute(new Task(this, priority, sequence.getAndIncrement(), taskName, task));
+            int depth = executor.getQueue().size();
+            int max;
+            while (depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth)) {
+                // retry
+            }
+        }
+
+        void started(Task task) {
+            running.incrementAndGet();
+            long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - task.queuedAt);
+            long max;
+            while (waited > (max = maxWaitMillis.get()) && !maxWaitMillis.compareAndSet(max, waited)) {
+                // retry
+            }
+            if (waited > SLOW_WAIT_MS) {
+                Log.d(TAG, "TaskScheduler: " + task.name + " (" + task.priority + ") waited " + waited
+                        + " ms in " + name + " queue, " + executor.getQueue().size() + " still queued");
+            }
+        }
+
+        void finished() {
+            running.decrementAndGet();
+            completed.incrementAndGet();
+        }
+
+        String stats() {
+            return String.format(Locale.getDefault(), "%s: %d running, %d queued, %d done, max queue %d, max wait %d ms",
+                    name, running.get(), executor.getQueue().size(), completed.get(),
+                    maxQueueDepth.get(), maxWaitMillis.get());
+        }
+    }
+
+    private static class Task implements Runnable, Comparable<Task> {
+        final Pool pool;
+        final Priority priority;
+        final long sequence;
+        final String name;
+        final Runnable body;
+        final long queuedAt = System.nanoTime();
+
+        Task(Pool pool, Priority priority, long sequence, String name, Runnable body) {
+            this.pool = pool;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.name = name;
+            this.body = body;
+        }
+
+        @Override
+        public void run() {
+            pool.started(this);
+            try {
+                body.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "TaskScheduler: " + name + " failed", e);
+            } finally {
+                pool.finished();
+            }
+        }
+
+        // Higher priority first, then first come first served
+        @Override
+        public int compareTo(Task other) {
+            int byPriority = priority.compareTo(other.priority);
+            if (byPriority != 0) return byPriority;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.fastkeyboard;
+
+import android.content.Context;
+import android.util.Log;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transcripts keyed by the audio they came from, so sending the same clip again (a
+ * retry, a recovered or queued dictation) never pays for a second upload.
+ *
+ * The key is a SHA-256 over the audio bytes plus everything else that changes the
+ * answer: API URL, model, prompt and language. SHA-256 runs on the ARMv8 crypto
+ * instructions on current phones, so hashing a minute of 16 kHz audio takes a few
+ * milliseconds, and collisions are not a concern the way they would be with a
+ * 32- or 64-bit hash.
+ *
+ * Entries live in {@code filesDir/transcripts/}, one small file each, evicted least
+ * recently used past {@link #MAX_ENTRIES} or {@link #MAX_BYTES}. A small map in front
+ * answers repeats without touching the disk.
+ */
+public class TranscriptCache {
+    private static final String TAG = "VoiceKeyboard";
+    private static final String DIR = "transcripts";
+    private static final int MAX_ENTRIES = 500;
+    private static final long MAX_BYTES = 2 * 1024 * 1024;
+    private static final int MEMORY_ENTRIES = 32;
+
+    private static final Map<String, String> memory = new LinkedHashMap<String, String>(MEMORY_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MEMORY_ENTRIES;
+        }
+    };
+
+    private static final AtomicLong memoryHits = new AtomicLong();
+    private static final AtomicLong diskHits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Key for {@code audioFile} (read from a {@link RecordingSink} when held in memory)
+     * sent with these parameters; null parameters count as empty.
+     */
+    public static String key(File audioFile, String apiUrl, String model, String prompt, String language)
+            throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        InputStream in = RecordingSink.openStream(audioFile);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        // Length-prefixed, so no two parameter lists hash the same
+        for (String parameter : new String[]{apiUrl, model, prompt, language}) {
+            byte[] bytes = (parameter != null ? parameter : "").getBytes("UTF-8");
+            digest.update(new byte[]{(byte) (bytes.length >>> 24), (byte) (bytes.length >>> 16),
+                    (byte) (bytes.length >>> 8), (byte) bytes.length});
+            digest.update(bytes);
+        }
+
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /** The cached transcript for {@code key}, or null. */
+    public static String get(Context context, String key) {
+        synchronized (memory) {
+            String text = memory.get(key);
+            if (text != null) {
+                memoryHits.incrementAndGet();
+                return text;
+            }
+        }
+
+        File file = new File(dir(context), key);
+        if (!file.exists()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            String text = read(file);
+            // Recently used, for eviction
+            file.setLastModified(System.currentTimeMillis());
+            synchronized (memory) {
+                memory.put(key, text);
+            }
+            diskHits.incrementAndGet();
+            return text;
+        } catch (IOException e) {
+            Log.w(TAG, "TranscriptCache: unreadable entry " + key + ": " + e.getMessage());
+            file.delete();
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    public static void put(Context context, String key, String text) {
+        synchronized (memory) {
+            memory.put(key, text);
+        }
+        File dir = dir(context);
+        File file = new File(dir, key);
+        File partial = new File(dir, key + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(partial);
+            try {
+                out.write(text.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            if (!partial.renameTo(file)) {
+                throw new IOException("Cannot rename " + partial);
+            }
+        } catch (IOException e) {
+            // Only a missed saving; the transcript itself was delivered
+            Log.w(TAG, "TranscriptCache: could not store " + key + ": " + e.getMessage());
+            partial.delete();
+            return;
+        }
+        trim(dir);
+    }
+
+    /** e.g. "Transcript cache: 12 hits (3 from memory), 40 misses, 52 entries". */
+    public static String stats(Context context) {
+        File[] files = dir(context).listFiles();
+        long hits = memoryHits.get() + diskHits.get();
+        return String.format(Locale.getDefault(), "Transcript cache: %d hits (%d from memory), %d misses, %d entries",
+                hits, memoryHits.get(), misses.get(), files != null ? files.length : 0);
+    }
+
+    // Oldest use first out, until both limits hold
+    private static synchronized void trim(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        long bytes = 0;
+        for (File file : files) {
+            bytes += file.length();
+        }
+        if (files.length <= MAX_ENTRIES && bytes <= MAX_BYTES) return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+            }
+        });
+        int count = files.length;
+        for (File file : files) {
+            if (count <= MAX_ENTRIES && bytes <= MAX_BYTES) break;
+            bytes -= file.length();
+            count--;
+            synchronized (memory) {
+                memory.remove(file.getName());
+            }
+            file.delete();
+        }
+    }
+
+    private static File dir(Context context) {
+        File dir = new File(context.getFilesDir(), DIR);
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static String read(File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) file.length());
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes.toString("UTF-8");
+    }
+}
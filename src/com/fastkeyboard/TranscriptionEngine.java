@@ -0,0 +1,28 @@
+package com.fastkeyboard;
+
+import android.content.Context;
+import java.io.File;
+
+/**
+ * A speech-to-text backend. {@link TranscriptionRouter} picks one per request; the
+ * keyboards never talk to an engine directly.
+ */
+public interface TranscriptionEngine {
+    /** Identifies the engine in stats and logs; changes whenever its configuration does. */
+    String getName();
+
+    /** Whether it has what it needs to send a request, e.g. a URL and a key. */
+    boolean isConfigured();
+
+    /**
+     * Transcribes a finished recording; the callback is invoked on a background thread.
+     *
+     * @param promptOverride sent instead of the configured prompt, e.g. the preceding
+     *                       segment's text; null to use the setting
+     */
+    void transcribe(Context context, File audioFile, String promptOverride, WhisperAPI.TranscriptionCallback callback);
+
+    /** Transcribes audio still being recorded, as {@link WhisperAPI#transcribeStream} describes. */
+    WhisperAPI.StreamingUpload transcribeStream(Context context, PcmRingBuffer.Reader reader, int sampleRate,
+                                                boolean trimSilence, WhisperAPI.TranscriptionCallback callback);
+}
@@ -0,0 +1,357 @@
+package com.fastkeyboard;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.util.Log;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Dictations that couldn't be transcribed because the network was down or the server
+ * failed, kept under {@code filesDir/outbox/<id>/} until they can be sent.
+ *
+ * The queue drains whenever the default network becomes validated and each time the
+ * keyboard is shown, oldest first and at most {@link #MAX_IN_FLIGHT} at a time. An
+ * item that fails again waits with exponential backoff; one that fails for good, or
+ * {@link #MAX_ATTEMPTS} times, is dropped with a notification. Results go to the
+ * history and to a notification that opens it, since the text field the user
+ * dictated into is usually gone by then.
+ */
+public class TranscriptionQueue {
+    private static final String TAG = "VoiceKeyboard";
+    private static final String PREFS_NAME = "VoiceKeyboardPrefs";
+    private static final String KEY_SEGMENT_PARALLELISM = "segment_parallelism";
+    private static final String DIR = "outbox";
+    private static final String META = "meta";
+    private static final String PARTIAL = ".part";
+    private static final String CHANNEL_ID = "transcription_queue";
+    private static final int MAX_IN_FLIGHT = 2;
+    private static final long RETRY_BASE_MS = 60 * 1000;
+    private static final long RETRY_CAP_MS = 60 * 60 * 1000;
+    // About nine hours of backoff
+    private static final int MAX_ATTEMPTS = 15;
+    // An item without complete audio this old was cut off mid-copy; its journal survived
+    private static final long ABANDONED_COPY_MS = 10 * 60 * 1000;
+
+    // Items this process is sending now
+    private static final Set<String> inFlight = Collections.synchronizedSet(new HashSet<String>());
+    private static ConnectivityManager.NetworkCallback callback;
+
+    /** Whether the active network has been validated to reach the internet. */
+    public static boolean isOnline(Context context) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        Network network = cm.getActiveNetwork();
+        NetworkCapabilities caps = network != null ? cm.getNetworkCapabilities(network) : null;
+        return caps != null && caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+    }
+
+    /**
+     * Copies the recording into the queue and then releases it and its journal. If the
+     * copy fails the journal is handed to recovery instead, so the audio is never lost.
+     */
+    public static void enqueue(Context context, final File audioFile, final String journalId) {
+        final Context app = context.getApplicationContext();
+        TaskScheduler.background(TaskScheduler.Priority.NORMAL, "queue " + audioFile.getName(), new Runnable() {
+            @Override
+            public void run() {
+                File filesDir = app.getFilesDir();
+                File dir = null;
+                try {
+                    dir = createItemDir(new File(filesDir, DIR));
+                    writeMeta(dir, audioFile.getName(), 0, 0);
+                    // Only complete copies are picked up by a drain
+                    File partial = new File(dir, audioFile.getName() + PARTIAL);
+                    copy(audioFile, partial);
+                    if (!partial.renameTo(new File(dir, audioFile.getName()))) {
+                        throw new IOException("Cannot rename " + partial);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "TranscriptionQueue: could not queue " + audioFile.getName() + ": " + e.getMessage());
+                    if (dir != null) {
+                        delete(dir);
+                    }
+                    RecordingJournal.abandon(journalId);
+                    return;
+                }
+                RecordingSink.delete(audioFile);
+                RecordingJournal.discard(filesDir, journalId);
+                Log.d(TAG, "TranscriptionQueue: queued " + dir.getName() + ", " + size(app) + " waiting");
+            }
+        });
+    }
+
+    /** Number of dictations waiting, including any being sent. */
+    public static int size(Context context) {
+        File[] dirs = new File(context.getFilesDir(), DIR).listFiles();
+        return dirs != null ? dirs.length : 0;
+    }
+
+    /**
+     * Drains the queue each time the default network is validated. Registers once per
+     * process.
+     */
+    public static synchronized void watch(Context context) {
+        if (callback != null) return;
+        final Context app = context.getApplicationContext();
+        ConnectivityManager cm = (ConnectivityManager) app.getSystemService(Context.CONNECTIVITY_SERVICE);
+        callback = new ConnectivityManager.NetworkCallback() {
+            private boolean validated = false;
+
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities caps) {
+                boolean now = caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+                if (now && !validated) {
+                    // Back online: whatever failed offline is worth trying at once
+                    drain(app, true);
+                }
+                validated = now;
+            }
+
+            @Override
+            public void onLost(Network network) {
+                validated = false;
+            }
+        };
+        cm.registerDefaultNetworkCallback(callback);
+    }
+
+    /** Sends the items whose retry time has come, if online. */
+    public static void drain(Context context) {
+        drain(context.getApplicationContext(), false);
+    }
+
+    private static void drain(final Context app, final boolean ignoreBackoff) {
+        TaskScheduler.background(TaskScheduler.Priority.BACKGROUND, "drain outbox", new Runnable() {
+            @Override
+            public void run() {
+                if (isOnline(app)) {
+                    startDue(app, ignoreBackoff);
+                }
+            }
+        });
+    }
+
+    // Synchronized so concurrent drains neither pick the same item nor overshoot the limit
+    private static synchronized void startDue(Context app, boolean ignoreBackoff) {
+        File[] dirs = new File(app.getFilesDir(), DIR).listFiles();
+        if (dirs == null) return;
+
+        Arrays.sort(dirs); // oldest first
+        long now = System.currentTimeMillis();
+        for (File dir : dirs) {
+            if (inFlight.size() >= MAX_IN_FLIGHT) return;
+            if (!inFlight.add(dir.getName())) continue;
+            boolean sending = false;
+            try {
+                Item item = Item.load(dir);
+                if (item == null) {
+                    if (now - dir.lastModified() > ABANDONED_COPY_MS) {
+                        delete(dir);
+                    }
+                } else if (ignoreBackoff || item.nextAttemptAt <= now) {
+                    send(app, item);
+                    sending = true;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "TranscriptionQueue: unreadable item " + dir.getName() + ": " + e.getMessage());
+            } finally {
+                if (!sending) {
+                    inFlight.remove(dir.getName());
+                }
+            }
+        }
+    }
+
+    // The caller has put the item in inFlight
+    private static void send(final Context app, final Item item) {
+        Log.d(TAG, "TranscriptionQueue: sending " + item.dir.getName() + ", attempt " + (item.attempts + 1));
+        // Segmented like a live dictation, so long recordings stay under the upload limit
+        int parallelism = app.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getInt(KEY_SEGMENT_PARALLELISM, 0);
+        TranscriptionRouter.transcribe(app, item.audio, parallelism, new WhisperAPI.TranscriptionCallback() {
+            @Override
+            public void onSuccess(String transcription) {
+                VoiceKeyboard.saveToHistory(app, transcription);
+                notifyResult(app, item, "Queued dictation transcribed", transcription);
+                delete(item.dir);
+                inFlight.remove(item.dir.getName());
+                // A slot is free for the next one
+                drain(app, false);
+            }
+
+            @Override
+            public void onError(String error) {
+                if (WhisperAPI.ERROR_NO_TRANSCRIPTION.equals(error)) {
+                    Log.d(TAG, "TranscriptionQueue: " + item.dir.getName() + " had no speech, dropped");
+                    delete(item.dir);
+                } else if (!WhisperAPI.isTransient(error)) {
+                    Log.e(TAG, "TranscriptionQueue: " + item.dir.getName() + " rejected: " + error);
+                    notifyResult(app, item, "Queued dictation failed", error);
+                    delete(item.dir);
+                } else if (item.attempts + 1 >= MAX_ATTEMPTS) {
+                    Log.e(TAG, "TranscriptionQueue: " + item.dir.getName() + " gave up after "
+                            + MAX_ATTEMPTS + " attempts: " + error);
+                    notifyResult(app, item, "Queued dictation failed",
+                            "Gave up after " + MAX_ATTEMPTS + " attempts: " + error);
+                    delete(item.dir);
+                } else {
+                    int attempts = item.attempts + 1;
+                    long delay = Math.min(RETRY_CAP_MS, RETRY_BASE_MS << Math.min(attempts - 1, 6));
+                    try {
+                        writeMeta(item.dir, item.audio.getName(), attempts, System.currentTimeMillis() + delay);
+                    } catch (IOException e) {
+                        Log.w(TAG, "TranscriptionQueue: could not update " + item.dir.getName() + ": " + e.getMessage());
+                    }
+                    Log.d(TAG, "TranscriptionQueue: " + item.dir.getName() + " failed (" + error
+                            + "), next try in " + delay / 1000 + " s");
+                }
+                inFlight.remove(item.dir.getName());
+            }
+        });
+    }
+
+    private static void notifyResult(Context app, Item item, String title, String text) {
+        NotificationManager manager = (NotificationManager) app.getSystemService(Context.NOTIFICATION_SERVICE);
+        NotificationChannel channel = new NotificationChannel(CHANNEL_ID, "Queued dictations",
+                NotificationManager.IMPORTANCE_DEFAULT);
+        channel.setDescription("Dictations transcribed after the connection came back");
+        manager.createNotificationChannel(channel);
+
+        // History has the copy button for pasting the text where it was meant to go
+        Intent intent = new Intent(app, HistoryActivity.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        PendingIntent open = PendingIntent.getActivity(app, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+        Notification notification = new Notification.Builder(app, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setContentTitle(title)
+                .setContentText(text)
+                .setStyle(new Notification.BigTextStyle().bigText(text))
+                .setContentIntent(open)
+                .setAutoCancel(true)
+                .build();
+        manager.notify(item.dir.getName().hashCode(), notification);
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream in = RecordingSink.openStream(from);
+        FileOutputStream out = new FileOutputStream(to);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            out.getFD().sync();
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    // Named by time for oldest-first draining; mkdir fails on a taken name, so two
+    // dictations queued in the same millisecond each get their own directory
+    private static File createItemDir(File outbox) throws IOException {
+        outbox.mkdirs();
+        String base = String.valueOf(System.currentTimeMillis());
+        for (int suffix = 0; suffix < 100; suffix++) {
+            File dir = new File(outbox, suffix == 0 ? base : base + "-" + suffix);
+            if (dir.mkdir()) {
+                return dir;
+            }
+        }
+        throw new IOException("Cannot create an item in " + outbox);
+    }
+
+    // Names the audio, so nothing else in the directory is ever sent; replaced by rename,
+    // so a crash leaves either the old or the new one
+    private static void writeMeta(File dir, String audioName, int attempts, long nextAttemptAt) throws IOException {
+        File partial = new File(dir, META + PARTIAL);
+        FileOutputStream out = new FileOutputStream(partial);
+        try {
+            out.write(("audio " + audioName + "\nattempts " + attempts + "\nnext " + nextAttemptAt + "\n")
+                    .getBytes("UTF-8"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!partial.renameTo(new File(dir, META))) {
+            throw new IOException("Cannot rename " + partial);
+        }
+    }
+
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static class Item {
+        final File dir;
+        final File audio;
+        final int attempts;
+        final long nextAttemptAt;
+
+        private Item(File dir, File audio, int attempts, long nextAttemptAt) {
+            this.dir = dir;
+            this.audio = audio;
+            this.attempts = attempts;
+            this.nextAttemptAt = nextAttemptAt;
+        }
+
+        static Item load(File dir) throws IOException {
+            File meta = new File(dir, META);
+            if (!meta.exists()) {
+                // Just created
+                return null;
+            }
+
+            String audioName = null;
+            int attempts = 0;
+            long nextAttemptAt = 0;
+            BufferedReader reader = new BufferedReader(new FileReader(meta));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("audio ")) {
+                        audioName = line.substring(6).trim();
+                    } else if (line.startsWith("attempts ")) {
+                        attempts = Integer.parseInt(line.substring(9).trim());
+                    } else if (line.startsWith("next ")) {
+                        nextAttemptAt = Long.parseLong(line.substring(5).trim());
+                    }
+                }
+            } catch (NumberFormatException e) {
+                // Lost schedule: send it on the next drain
+            } finally {
+                reader.close();
+            }
+
+            File audio = audioName != null ? new File(dir, audioName) : null;
+            if (audio == null || audio.length() == 0) {
+                // Still being copied, or the copy was cut off
+                return null;
+            }
+            return new Item(dir, audio, attempts, nextAttemptAt);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.fastkeyboard;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The parts of a Whisper response the keyboard uses, read from either the
+ * {@code json} or the {@code verbose_json} format. Fields the format doesn't carry
+ * stay null or empty.
+ */
+public class TranscriptionResponse {
+    private static final String[] TOP_LEVEL = {"text", "language", "segments"};
+    private static final String[] SEGMENT_FIELDS = {"start", "end", "text"};
+    private static final String[] EVENT_FIELDS = {"type", "delta", "text"};
+
+    private String text;
+    private String language;
+    private List<Segment> segments = Collections.emptyList();
+
+    public static class Segment {
+        private final double start;
+        private final double end;
+        private final String text;
+
+        Segment(double start, double end, String text) {
+            this.start = start;
+            this.end = end;
+            this.text = text;
+        }
+
+        /** Seconds from the start of the audio. */
+        public double getStart() {
+            return start;
+        }
+
+        public double getEnd() {
+            return end;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * One server-sent event of a streamed transcription: {@code transcript.text.delta}
+     * carries the next piece of text, {@code transcript.text.done} the whole of it.
+     */
+    public static class StreamEvent {
+        private String type;
+        private String delta;
+        private String text;
+
+        public boolean isDelta() {
+            return "transcript.text.delta".equals(type);
+        }
+
+        public boolean isDone() {
+            return "transcript.text.done".equals(type);
+        }
+
+        public String getDelta() {
+            return delta;
+        }
+
+        /** Full transcript, on the done event. */
+        public String getText() {
+            return text;
+        }
+    }
+
+    public static StreamEvent parseEvent(String data) throws IOException {
+        JsonPullParser parser = new JsonPullParser(new StringReader(data));
+        StreamEvent event = new StreamEvent();
+        parser.beginObject();
+        while (parser.hasNext()) {
+            int field = parser.selectName(EVENT_FIELDS);
+            if (field < 0 || parser.peek() == JsonPullParser.Token.NULL) {
+                parser.skipValue();
+                continue;
+            }
+            String value = parser.nextString();
+            if (field == 0) {
+                event.type = value;
+            } else if (field == 1) {
+                event.delta = value;
+            } else {
+                event.text = value;
+            }
+        }
+        parser.endObject();
+        return event;
+    }
+
+    /**
+     * Reads one response object from {@code in}. The stream is left open and may
+     * still hold trailing whitespace.
+     */
+    public static TranscriptionResponse parse(InputStream in) throws IOException {
+        JsonPullParser parser = new JsonPullParser(new InputStreamReader(in, "UTF-8"));
+        TranscriptionResponse response = new TranscriptionResponse();
+        parser.beginObject();
+        while (parser.hasNext()) {
+            int field = parser.selectName(TOP_LEVEL);
+            if (parser.peek() == JsonPullParser.Token.NULL) {
+                parser.nextNull();
+                continue;
+            }
+            switch (field) {
+                case 0:
+                    response.text = parser.nextString();
+                    break;
+                case 1:
+                    response.language = parser.nextString();
+                    break;
+                case 2:
+                    response.segments = readSegments(parser);
+                    break;
+                default:
+                    parser.skipValue();
+            }
+        }
+        parser.endObject();
+        return response;
+    }
+
+    private static List<Segment> readSegments(JsonPullParser parser) throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        parser.beginArray();
+        while (parser.hasNext()) {
+            double start = 0;
+            double end = 0;
+            String text = "";
+            parser.beginObject();
+            while (parser.hasNext()) {
+                switch (parser.selectName(SEGMENT_FIELDS)) {
+                    case 0:
+                        start = parser.nextDouble();
+                        break;
+                    case 1:
+                        end = parser.nextDouble();
+                        break;
+                    case 2:
+                        text = parser.nextString();
+                        break;
+                    default:
+                        parser.skipValue();
+                }
+            }
+            parser.endObject();
+            segments.add(new Segment(start, end, text));
+        }
+        parser.endArray();
+        return segments;
+    }
+
+    /** The transcript, or null when the response had none. */
+    public String getText() {
+        return text;
+    }
+
+    /** Detected language (verbose_json only), e.g. "english". */
+    public String getLanguage() {
+        return language;
+    }
+
+    /** Timed segments (verbose_json only). */
+    public List<Segment> getSegments() {
+        return segments;
+    }
+}
@@ -0,0 +1,383 @@
+package com.fastkeyboard;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Sends each dictation to whichever configured {@link TranscriptionEngine} is currently
+ * answering fastest.
+ *
+ * For every engine the router keeps the latency and outcome of its last {@link #WINDOW}
+ * requests. Healthy engines are ranked by median latency, then p95. An engine that
+ * fails {@link #CONSECUTIVE_FAILURES} times in a row, or on more than half of its
+ * recent requests, is benched for {@link #BENCH_MS}; if every engine is benched the
+ * least failing one is still used. An engine that has too few samples, or has not been
+ * picked for {@link #PROBE_EVERY} dictations, gets the next one so its numbers don't go
+ * stale while another engine wins.
+ *
+ * Latency is the wall time of each upload, so a dictation split by
+ * {@link ParallelTranscriber} adds one sample per segment; answers from
+ * {@link TranscriptCache} are not counted at all. Latency grows with the clip length,
+ * but every engine sees the same mix of clips over time. Any error other than an
+ * empty transcript counts against the engine, since a wrong key or URL is as much its
+ * fault as an outage, and the dictation is sent once more to the next healthy engine.
+ */
+public class TranscriptionRouter {
+    private static final String TAG = "VoiceKeyboard";
+    private static final int WINDOW = 50;
+    private static final int MIN_SAMPLES = 3;
+    private static final int PROBE_EVERY = 20;
+    private static final int CONSECUTIVE_FAILURES = 3;
+    private static final double MAX_ERROR_RATE = 0.5;
+    private static final long BENCH_MS = 60000;
+
+    private static final Map<String, EngineStats> statsByName = new HashMap<>();
+    private static long dictations = 0; // guarded by statsByName
+
+    /**
+     * Transcribes a finished recording on the best engine, split into segments as
+     * {@link ParallelTranscriber} does when {@code parallelism} is above 0.
+     */
+    public static void transcribe(Context context, File audioFile, int parallelism,
+                                  WhisperAPI.TranscriptionCallback callback) {
+        send(context, rank(engines(context), true), 0, audioFile, parallelism, callback);
+    }
+
+    /**
+     * Starts a live upload on the best engine. Its duration includes the speaking
+     * time, so only its outcome counts towards the engine's health; there is no
+     * failover, the caller already falls back to uploading the finished file. It is not
+     * counted as a dictation for probing, or a failed stream and its file fallback
+     * would count twice.
+     */
+    public static WhisperAPI.StreamingUpload transcribeStream(Context context, PcmRingBuffer.Reader reader,
+                                                              int sampleRate, boolean trimSilence,
+                                                              WhisperAPI.TranscriptionCallback callback) {
+        TranscriptionEngine engine = rank(engines(context), false).get(0);
+        Log.d(TAG, "TranscriptionRouter: live upload to " + engine.getName());
+        return engine.transcribeStream(context, reader, sampleRate, trimSilence,
+                measure(engine.getName(), -1, callback));
+    }
+
+    /** e.g. "Main (whisper-1 @ api.openai.com): p50 1400 ms, p95 2900 ms, 2% errors, 48 requests". */
+    public static String stats(Context context) {
+        long now = SystemClock.elapsedRealtime();
+        StringBuilder stats = new StringBuilder();
+        synchronized (statsByName) {
+            for (TranscriptionEngine engine : engines(context)) {
+                EngineStats engineStats = statsFor(engine.getName());
+                if (stats.length() > 0) stats.append('\n');
+                stats.append(String.format(Locale.getDefault(), "%s: p50 %d ms, p95 %d ms, %d%% errors, %d requests%s",
+                        engine.getName(), engineStats.percentile(50), engineStats.percentile(95),
+                        Math.round(engineStats.errorRate() * 100), engineStats.requests,
+                        engineStats.isHealthy(now) ? "" : ", benched"));
+            }
+        }
+        return stats.toString();
+    }
+
+    // The configured engines; the main one alone when none is, so its "not configured" error is what shows
+    private static List<TranscriptionEngine> engines(Context context) {
+        List<TranscriptionEngine> engines = new ArrayList<>();
+        TranscriptionEngine primary = OpenAITranscriptionEngine.primary(context);
+        TranscriptionEngine secondary = OpenAITranscriptionEngine.secondary(context);
+        if (primary.isConfigured() || !secondary.isConfigured()) {
+            engines.add(primary);
+        }
+        if (secondary.isConfigured()) {
+            engines.add(secondary);
+        }
+        return engines;
+    }
+
+    // Best first; with newDictation, counts as a dictation routed to the first one
+    private static List<TranscriptionEngine> rank(List<TranscriptionEngine> engines, boolean newDictation) {
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (statsByName) {
+            if (newDictation) {
+                dictations++;
+            }
+            if (engines.size() > 1) {
+                Collections.sort(engines, new Comparator<TranscriptionEngine>() {
+                    @Override
+                    public int compare(TranscriptionEngine a, TranscriptionEngine b) {
+                        EngineStats sa = statsFor(a.getName());
+                        EngineStats sb = statsFor(b.getName());
+                        boolean healthyA = sa.isHealthy(now);
+                        boolean healthyB = sb.isHealthy(now);
+                        if (healthyA != healthyB) {
+                            return healthyA ? -1 : 1;
+                        }
+                        if (!healthyA) {
+                            return Double.compare(sa.errorRate(), sb.errorRate());
+                        }
+                        boolean probeA = sa.needsProbe(dictations);
+                        boolean probeB = sb.needsProbe(dictations);
+                        if (probeA != probeB) {
+                            return probeA ? -1 : 1;
+                        }
+                        int byMedian = Long.compare(sa.percentile(50), sb.percentile(50));
+                        return byMedian != 0 ? byMedian : Long.compare(sa.percentile(95), sb.percentile(95));
+                    }
+                });
+            }
+            if (newDictation) {
+                statsFor(engines.get(0).getName()).lastDictation = dictations;
+            }
+        }
+        return engines;
+    }
+
+    private static void send(final Context context, final List<TranscriptionEngine> ranked, final int index,
+                             final File audioFile, final int parallelism,
+                             final WhisperAPI.TranscriptionCallback callback) {
+        final TranscriptionEngine engine = ranked.get(index);
+        Log.d(TAG, "TranscriptionRouter: " + audioFile.getName() + " to " + engine.getName());
+
+        WhisperAPI.TranscriptionCallback result = callback;
+        if (index + 1 < ranked.size()) {
+            result = forward(callback, new WhisperAPI.TranscriptionCallback() {
+                @Override
+                public void onSuccess(String transcription) {
+                    callback.onSuccess(transcription);
+                }
+
+                @Override
+                public void onError(String error) {
+                    TranscriptionEngine next = ranked.get(index + 1);
+                    if (WhisperAPI.ERROR_NO_TRANSCRIPTION.equals(error) || !isHealthy(next)) {
+                        callback.onError(error);
+                        return;
+                    }
+                    Log.w(TAG, "TranscriptionRouter: " + engine.getName() + " failed (" + error
+                            + "), trying " + next.getName());
+                    synchronized (statsByName) {
+                        statsFor(next.getName()).lastDictation = dictations;
+                    }
+                    send(context, ranked, index + 1, audioFile, parallelism, callback);
+                }
+            });
+        }
+        ParallelTranscriber.transcribe(context, new MeasuredEngine(engine), audioFile, parallelism, result);
+    }
+
+    private static boolean isHealthy(TranscriptionEngine engine) {
+        synchronized (statsByName) {
+            return statsFor(engine.getName()).isHealthy(SystemClock.elapsedRealtime());
+        }
+    }
+
+    private static EngineStats statsFor(String name) {
+        EngineStats engineStats = statsByName.get(name);
+        if (engineStats == null) {
+            engineStats = new EngineStats();
+            statsByName.put(name, engineStats);
+        }
+        return engineStats;
+    }
+
+    /**
+     * {@code handler} gets the result; partials still go straight to {@code callback},
+     * and the wrapper is only a streaming callback when {@code callback} is, so
+     * WhisperAPI asks for a streamed response exactly when it would have.
+     */
+    private static WhisperAPI.TranscriptionCallback forward(final WhisperAPI.TranscriptionCallback callback,
+                                                            final WhisperAPI.TranscriptionCallback handler) {
+        if (!(callback instanceof WhisperAPI.StreamingTranscriptionCallback)) {
+            return handler;
+        }
+        return new WhisperAPI.StreamingTranscriptionCallback() {
+            @Override
+            public void onPartial(String textSoFar) {
+                ((WhisperAPI.StreamingTranscriptionCallback) callback).onPartial(textSoFar);
+            }
+
+            @Override
+            public void onSuccess(String transcription) {
+                handler.onSuccess(transcription);
+            }
+
+            @Override
+            public void onError(String error) {
+                handler.onError(error);
+            }
+        };
+    }
+
+    /** @param start when the request was sent, or -1 to record only the outcome */
+    private static WhisperAPI.TranscriptionCallback measure(String name, long start,
+                                                            WhisperAPI.TranscriptionCallback callback) {
+        // Only a streaming callback when the caller's is, like forward
+        return callback instanceof WhisperAPI.StreamingTranscriptionCallback
+                ? new StreamingMeasurement(name, start, callback)
+                : new Measurement(name, start, callback);
+    }
+
+    /** Records the outcome of one request; WhisperAPI says when there was no request. */
+    private static class Measurement implements WhisperAPI.TranscriptionCallback, WhisperAPI.CacheHitListener {
+        private final String name;
+        private final long start;
+        final WhisperAPI.TranscriptionCallback callback;
+        private volatile boolean cacheHit = false;
+
+        Measurement(String name, long start, WhisperAPI.TranscriptionCallback callback) {
+            this.name = name;
+            this.start = start;
+            this.callback = callback;
+        }
+
+        @Override
+        public void onCacheHit() {
+            cacheHit = true;
+        }
+
+        @Override
+        public void onSuccess(String transcription) {
+            recordSuccess();
+            callback.onSuccess(transcription);
+        }
+
+        @Override
+        public void onError(String error) {
+            if (WhisperAPI.ERROR_NO_TRANSCRIPTION.equals(error)) {
+                // The engine answered; there was nothing to hear
+                recordSuccess();
+            } else {
+                synchronized (statsByName) {
+                    statsFor(name).recordFailure(SystemClock.elapsedRealtime());
+                }
+            }
+            callback.onError(error);
+        }
+
+        private void recordSuccess() {
+            if (cacheHit) return;
+            long elapsed = start >= 0 ? SystemClock.elapsedRealtime() - start : -1;
+            synchronized (statsByName) {
+                statsFor(name).recordSuccess(elapsed);
+            }
+        }
+    }
+
+    private static class StreamingMeasurement extends Measurement
+            implements WhisperAPI.StreamingTranscriptionCallback {
+        StreamingMeasurement(String name, long start, WhisperAPI.TranscriptionCallback callback) {
+            super(name, start, callback);
+        }
+
+        @Override
+        public void onPartial(String textSoFar) {
+            ((WhisperAPI.StreamingTranscriptionCallback) callback).onPartial(textSoFar);
+        }
+    }
+
+    /** Times every request {@link ParallelTranscriber} sends through it. */
+    private static class MeasuredEngine implements TranscriptionEngine {
+        private final TranscriptionEngine engine;
+
+        MeasuredEngine(TranscriptionEngine engine) {
+            this.engine = engine;
+        }
+
+        @Override
+        public String getName() {
+            return engine.getName();
+        }
+
+        @Override
+        public boolean isConfigured() {
+            return engine.isConfigured();
+        }
+
+        @Override
+        public void transcribe(Context context, File audioFile, String promptOverride,
+                               WhisperAPI.TranscriptionCallback callback) {
+            engine.transcribe(context, audioFile, promptOverride,
+                    measure(engine.getName(), SystemClock.elapsedRealtime(), callback));
+        }
+
+        @Override
+        public WhisperAPI.StreamingUpload transcribeStream(Context context, PcmRingBuffer.Reader reader, int sampleRate,
+                                                           boolean trimSilence, WhisperAPI.TranscriptionCallback callback) {
+            return engine.transcribeStream(context, reader, sampleRate, trimSilence,
+                    measure(engine.getName(), -1, callback));
+        }
+    }
+
+    // Rolling windows over the last requests; guarded by statsByName
+    private static class EngineStats {
+        private final long[] latencies = new long[WINDOW];
+        private int latencyCount = 0;
+        private int nextLatency = 0;
+        private final boolean[] failures = new boolean[WINDOW];
+        private int outcomeCount = 0;
+        private int nextOutcome = 0;
+        private int consecutiveFailures = 0;
+        private long benchedUntil = 0;
+        long lastDictation = 0;
+        long requests = 0;
+
+        /** @param latencyMs -1 when there is no meaningful latency to record */
+        void recordSuccess(long latencyMs) {
+            if (latencyMs >= 0) {
+                latencies[nextLatency] = latencyMs;
+                nextLatency = (nextLatency + 1) % WINDOW;
+                latencyCount = Math.min(latencyCount + 1, WINDOW);
+            }
+            recordOutcome(false);
+            consecutiveFailures = 0;
+        }
+
+        void recordFailure(long now) {
+            recordOutcome(true);
+            consecutiveFailures++;
+            if (consecutiveFailures >= CONSECUTIVE_FAILURES
+                    || (outcomeCount >= MIN_SAMPLES && errorRate() > MAX_ERROR_RATE)) {
+                benchedUntil = now + BENCH_MS;
+            }
+        }
+
+        private void recordOutcome(boolean failed) {
+            failures[nextOutcome] = failed;
+            nextOutcome = (nextOutcome + 1) % WINDOW;
+            outcomeCount = Math.min(outcomeCount + 1, WINDOW);
+            requests++;
+        }
+
+        boolean isHealthy(long now) {
+            return now >= benchedUntil;
+        }
+
+        boolean needsProbe(long dictations) {
+            return latencyCount < MIN_SAMPLES || dictations - lastDictation >= PROBE_EVERY;
+        }
+
+        double errorRate() {
+            if (outcomeCount == 0) return 0;
+            int failed = 0;
+            for (int i = 0; i < outcomeCount; i++) {
+                if (failures[i]) failed++;
+            }
+            return failed / (double) outcomeCount;
+        }
+
+        /** Nearest-rank percentile of the window, 0 without samples. */
+        long percentile(int percent) {
+            if (latencyCount == 0) return 0;
+            long[] sorted = Arrays.copyOf(latencies, latencyCount);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(percent / 100.0 * latencyCount);
+            return sorted[Math.max(rank, 1) - 1];
+        }
+    }
+}
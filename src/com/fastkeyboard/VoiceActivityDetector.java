@@ -0,0 +1,100 @@
+package com.fastkeyboard;
+
+/**
+ * Frame-level speech/silence classifier using short-term energy and zero-crossing
+ * rate against an adaptive noise floor. Cheap enough to run on the capture thread.
+ *
+ * Feed it consecutive frames of roughly 10-30 ms. Not thread-safe; use one instance
+ * per consumer.
+ */
+public class VoiceActivityDetector {
+    // Absolute floor below which nothing counts as speech (16-bit full scale is 32767)
+    private static final double MIN_SPEECH_RMS = 200;
+    private static final double MIN_NOISE_FLOOR = 30;
+    // Speech must be this many times louder than the noise floor
+    private static final double ENERGY_RATIO = 3.0;
+    // Quieter frames still count when they look like fricatives (s, f, sh)
+    private static final double FRICATIVE_ENERGY_RATIO = 1.5;
+    private static final double FRICATIVE_ZCR = 0.25;
+    // Frames kept as speech after energy drops, so word endings aren't chopped
+    private static final int HANGOVER_FRAMES = 5;
+
+    private double noiseFloor = -1;
+    private double lastRms = 0;
+    private double lastZcr = 0;
+    private boolean lastVoiced = false;
+    private int hangover = 0;
+
+    public boolean isSpeech(short[] samples, int offset, int length) {
+        if (length <= 0) return false;
+
+        long sumSquares = 0;
+        int crossings = 0;
+        short previous = samples[offset];
+        for (int i = offset; i < offset + length; i++) {
+            short sample = samples[i];
+            sumSquares += (long) sample * sample;
+            if ((sample >= 0) != (previous >= 0)) {
+                crossings++;
+            }
+            previous = sample;
+        }
+        lastRms = Math.sqrt((double) sumSquares / length);
+        lastZcr = (double) crossings / length;
+
+        if (noiseFloor < 0) {
+            noiseFloor = Math.max(MIN_NOISE_FLOOR, lastRms);
+        }
+
+        boolean loud = lastRms > MIN_SPEECH_RMS && lastRms > noiseFloor * ENERGY_RATIO;
+        boolean fricative = lastRms > MIN_SPEECH_RMS / 2
+                && lastRms > noiseFloor * FRICATIVE_ENERGY_RATIO
+                && lastZcr > FRICATIVE_ZCR;
+
+        lastVoiced = loud || fricative;
+        if (lastVoiced) {
+            hangover = HANGOVER_FRAMES;
+            // Track the floor upward very slowly during speech
+            noiseFloor += (lastRms - noiseFloor) * 0.001;
+            return true;
+        }
+
+        // Follow the floor down immediately and up gradually
+        if (lastRms < noiseFloor) {
+            noiseFloor = Math.max(MIN_NOISE_FLOOR, lastRms);
+        } else {
+            noiseFloor += (lastRms - noiseFloor) * 0.02;
+        }
+
+        if (hangover > 0) {
+            hangover--;
+            return true;
+        }
+        return false;
+    }
+
+    public double getLastRms() {
+        return lastRms;
+    }
+
+    /** Whether the last frame was speech on its own energy, not only as hangover. */
+    public boolean wasLastFrameVoiced() {
+        return lastVoiced;
+    }
+
+    public double getLastZeroCrossingRate() {
+        return lastZcr;
+    }
+
+    public double getNoiseFloor() {
+        return Math.max(noiseFloor, MIN_NOISE_FLOOR);
+    }
+
+    public void reset() {
+        noiseFloor = -1;
+        lastRms = 0;
+        lastZcr = 0;
+        lastVoiced = false;
+        hangover = 0;
+    }
+}
@@ -7,14 +7,17 @@ import android.graphics.drawable.GradientDrawable;
 import android.inputmethodservice.InputMethodService;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.text.Editable;
 import android.text.InputType;
 import android.text.TextWatcher;
+import android.view.Choreographer;
 import android.view.Gravity;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.animation.AccelerateDecelerateInterpolator;
+import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputConnection;
 import android.widget.Button;
 import android.widget.EditText;
@@ -24,14 +27,33 @@ import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.Toast;
 import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 public class VoiceKeyboard extends InputMethodService {
     private static final String PREFS_NAME = "VoiceKeyboardPrefs";
     private static final String KEY_HISTORY = "transcription_history";
     private static final String KEY_AUDIO_QUALITY = "audio_quality";
+    private static final String KEY_AUDIO_ENGINE = "audio_engine";
+    private static final String KEY_STREAM_UPLOAD = "stream_upload";
+    private static final String KEY_TRIM_SILENCE = "trim_silence";
+    private static final String KEY_HANDS_FREE = "hands_free";
+    private static final String KEY_ENDPOINT_THRESHOLD_DB = "endpoint_threshold_db";
+    private static final String KEY_ENDPOINT_HANG_MS = "endpoint_hang_ms";
+    private static final String KEY_SEGMENT_PARALLELISM = "segment_parallelism";
+    private static final String KEY_PRE_ROLL = "pre_roll";
+    private static final String KEY_MEMORY_SINK_BYTES = "memory_sink_bytes";
+    private static final String KEY_CRASH_SAFE = "crash_safe_recording";
+    private static final String KEY_QUALITY_GATE = "quality_gate";
+    private static final String KEY_LATENCY_TRACE = "latency_trace";
+    // Long enough to cover AudioRecord start-up and a user who starts talking as they tap
+    private static final int PRE_ROLL_MS = 500;
+    private static final int LEVEL_RED = 0xFFFF5722;
+    private static final int LEVEL_YELLOW = 0xFFFFC107;
+    private static final int LEVEL_GREEN = 0xFF4CAF50;
 
     private LinearLayout mainLayout;
     private LinearLayout topButtonRow; // Top bar with Settings, Templates, History, Backspace
@@ -41,6 +63,7 @@ public class VoiceKeyboard extends InputMethodService {
     private Button recordBtn;
     private Button stopBtn;
     private Button cancelBtn;
+    private Button recoverBtn;
     private Button pauseBtn;
     private View amplitudeIndicator;
 
@@ -51,21 +74,35 @@ public class VoiceKeyboard extends InputMethodService {
     private boolean isShiftPressed = false; // Caps lock state
     private boolean isEmojiMode = false; // Emoji picker state
     private Handler mainHandler;
-    private long recordingStartTime = 0;
-    private long pausedTime = 0;
     private Runnable timerRunnable;
     private Runnable amplitudeRunnable;
+    // Frame-synced level updates from the AudioRecord meter; MediaRecorder uses amplitudeRunnable
+    private Choreographer.FrameCallback levelFrameCallback;
+    private final LevelMeter.Snapshot levelSnapshot = new LevelMeter.Snapshot();
+    private GradientDrawable amplitudeShape;
+    private final int[] amplitudeColors = new int[2];
+    private int amplitudeWidthPx = -1;
+    private int amplitudeGlow = Color.TRANSPARENT;
     private android.os.Vibrator vibrator;
 
+    // Pipelined upload state (main thread only)
+    private WhisperAPI.StreamingUpload streamingUpload;
+    private File streamedAudioFile; // finished recording waiting for the streamed result
+    private String streamedJournalId;
+    private RecordingSession streamedSession;
+    private String streamedText;    // streamed result that arrived before the file
+    private boolean streamFailed = false;
+    private boolean showingPartial = false; // composing text from a streamed transcript
+    private long traceDictationStart = 0; // LatencyTracer span from stop tap to commit
+
     @Override
     public void onCreate() {
         super.onCreate();
         audioRecorder = new AudioRecorder();
+        TranscriptionQueue.watch(this);
 
-        // Load and apply audio quality settings
-        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        String audioQuality = prefs.getString(KEY_AUDIO_QUALITY, "Low");
-        audioRecorder.setQuality(audioQuality);
+        // Load and apply audio quality and engine settings
+        applyRecorderSettings();
 
         mainHandler = new Handler(Looper.getMainLooper());
 
@@ -79,7 +116,7 @@ public class VoiceKeyboard extends InputMethodService {
                 if (isRecording && !audioRecorder.isRecording()) {
                     return;
                 }
-                long seconds = (System.currentTimeMillis() - recordingStartTime) / 1000;
+                long seconds = audioRecorder.getActiveMillis() / 1000;
                 statusText.setText("🔴 Recording... " + formatTime(seconds));
                 mainHandler.postDelayed(this, 1000);
             }
@@ -96,6 +133,20 @@ public class VoiceKeyboard extends InputMethodService {
                 }
             }
         };
+
+        levelFrameCallback = new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                if (!isRecording || isPaused || !audioRecorder.isRecording()) {
+                    return;
+                }
+                LevelMeter meter = audioRecorder.getLevelMeter();
+                if (meter != null && meter.read(levelSnapshot)) {
+                    updateLevelIndicator(levelSnapshot);
+                }
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        };
     }
 
     @Override
@@ -123,6 +174,9 @@ public class VoiceKeyboard extends InputMethodService {
         ));
 
         createEditorView();
+
+        // Have a recorder ready before the first tap
+        audioRecorder.prepareNext(getCacheDir());
         return mainLayout;
     }
 
@@ -233,16 +287,20 @@ public class VoiceKeyboard extends InputMethodService {
         amplitudeIndicator.setLayoutParams(ampParams);
         amplitudeIndicator.setVisibility(View.GONE);
 
-        // Initial gradient background for the bar - red color
-        android.graphics.drawable.GradientDrawable shape = new android.graphics.drawable.GradientDrawable();
-        shape.setShape(android.graphics.drawable.GradientDrawable.RECTANGLE);
+        // Initial gradient background for the bar - red color. Reused for every level
+        // update so the meter doesn't allocate a drawable per frame.
+        amplitudeShape = new GradientDrawable();
+        amplitudeShape.setShape(GradientDrawable.RECTANGLE);
         int red = Color.parseColor("#FF5722");
-        int lightRed = lightenColor(red, 0.3f);
-        shape.setColors(new int[]{lightRed, red});
-        shape.setGradientType(GradientDrawable.LINEAR_GRADIENT);
-        shape.setOrientation(GradientDrawable.Orientation.LEFT_RIGHT);
-        shape.setCornerRadius(dpToPx(4)); // Rounded edges
-        amplitudeIndicator.setBackground(shape);
+        amplitudeColors[0] = lightenColor(red, 0.3f);
+        amplitudeColors[1] = red;
+        amplitudeShape.setColors(amplitudeColors);
+        amplitudeShape.setGradientType(GradientDrawable.LINEAR_GRADIENT);
+        amplitudeShape.setOrientation(GradientDrawable.Orientation.LEFT_RIGHT);
+        amplitudeShape.setCornerRadius(dpToPx(4)); // Rounded edges
+        amplitudeIndicator.setBackground(amplitudeShape);
+        amplitudeWidthPx = -1;
+        amplitudeGlow = Color.TRANSPARENT;
 
         contentContainer.addView(amplitudeIndicator);
 
@@ -276,6 +334,25 @@ public class VoiceKeyboard extends InputMethodService {
 
         addSpace(row1, 8);
 
+        recoverBtn = createButton("♻️ Recover", "#00897B");
+        recoverBtn.setVisibility(View.GONE);
+        recoverBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                recoverDictation();
+            }
+        });
+        recoverBtn.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                discardUnfinishedDictations();
+                return true;
+            }
+        });
+        row1.addView(recoverBtn);
+
+        addSpace(row1, 8);
+
         pauseBtn = createButton("⏸ Pause", "#FFC107");
         pauseBtn.setVisibility(View.GONE);
         pauseBtn.setOnClickListener(new View.OnClickListener() {
@@ -861,8 +938,72 @@ public class VoiceKeyboard extends InputMethodService {
         return (int) (dp * getResources().getDisplayMetrics().density);
     }
 
+    private void applyRecorderSettings() {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        audioRecorder.setQuality(prefs.getString(KEY_AUDIO_QUALITY, "Low"));
+        audioRecorder.setTrimSilence(prefs.getBoolean(KEY_TRIM_SILENCE, false));
+        audioRecorder.setMemorySinkLimit(prefs.getInt(KEY_MEMORY_SINK_BYTES, 0));
+        boolean crashSafe = prefs.getBoolean(KEY_CRASH_SAFE, false);
+        audioRecorder.setJournalDir(crashSafe ? getFilesDir() : null);
+        LatencyTracer.setEnabled(prefs.getBoolean(KEY_LATENCY_TRACE, false));
+
+        if (prefs.getBoolean(KEY_PRE_ROLL, false) || crashSafe) {
+            // Only AudioRecord can prepend buffered audio to a recording or journal its PCM
+            audioRecorder.setEngine(AudioRecorder.ENGINE_AUDIO_RECORD);
+        } else {
+            audioRecorder.setEngine(prefs.getString(KEY_AUDIO_ENGINE, AudioRecorder.ENGINE_MEDIA_RECORDER));
+        }
+
+        if (prefs.getBoolean(KEY_HANDS_FREE, false)) {
+            // Endpointing needs per-frame PCM energy, which only AudioRecord provides
+            audioRecorder.setEngine(AudioRecorder.ENGINE_AUDIO_RECORD);
+            audioRecorder.setEndpointer(new Endpointer(audioRecorder.getSampleRate(),
+                prefs.getInt(KEY_ENDPOINT_THRESHOLD_DB, -40),
+                prefs.getInt(KEY_ENDPOINT_HANG_MS, 1200),
+                new Endpointer.Listener() {
+                    @Override
+                    public void onEndpoint() {
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (isRecording && !isPaused) {
+                                    processRecording();
+                                }
+                            }
+                        });
+                    }
+                }));
+        } else {
+            audioRecorder.setEndpointer(null);
+        }
+    }
+
+    /**
+     * Gets the microphone ready for the next tap: warm pre-roll capture if opted in,
+     * and a recorder prepared in the background.
+     */
+    private void readyNextRecording() {
+        updatePreRoll();
+        audioRecorder.prepareNext(getCacheDir());
+    }
+
+    private void updatePreRoll() {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        if (prefs.getBoolean(KEY_PRE_ROLL, false)) {
+            if (!audioRecorder.startPreRoll(PRE_ROLL_MS)) {
+                android.util.Log.w("VoiceKeyboard", "Pre-roll could not open the microphone");
+            }
+        } else {
+            audioRecorder.stopPreRoll();
+        }
+    }
+
     private void startRecording() {
+        // Pick up settings changed since the service was created
+        applyRecorderSettings();
+
         recordBtn.setVisibility(View.GONE);
+        recoverBtn.setVisibility(View.GONE);
         pauseBtn.setVisibility(View.VISIBLE);
         cancelBtn.setVisibility(View.VISIBLE);
         stopBtn.setVisibility(View.VISIBLE);
@@ -870,10 +1011,8 @@ public class VoiceKeyboard extends InputMethodService {
 
         isRecording = true;
         isPaused = false;
-        pausedTime = 0;
-        recordingStartTime = System.currentTimeMillis();
         mainHandler.post(timerRunnable);
-        mainHandler.post(amplitudeRunnable); // Start amplitude updates
+        startLevelUpdates();
 
         // Add pulsing glow to status text
         statusText.animate()
@@ -899,11 +1038,17 @@ public class VoiceKeyboard extends InputMethodService {
         audioRecorder.startRecording(getCacheDir(), new AudioRecorder.RecordingCallback() {
             @Override
             public void onRecordingStarted() {
+                startStreamingUploadIfEnabled();
                 mainHandler.post(new Runnable() {
                     @Override
                     public void run() {
                         statusText.setText("🔴 Recording... 00:00");
-                        showToast("Recording started");
+                        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+                        if (prefs.getBoolean(KEY_HANDS_FREE, false)) {
+                            showToast("Listening - stops when you pause");
+                        } else {
+                            showToast("Recording started");
+                        }
                     }
                 });
             }
@@ -928,22 +1073,57 @@ public class VoiceKeyboard extends InputMethodService {
     }
 
     private void processRecording() {
-        if (!isRecording) return;
+        // The endpointer and the Process button can both ask; only the first stop counts
+        if (!isRecording || !audioRecorder.isRecording()) return;
 
         vibrateHaptic(50); // Haptic on process
 
+        LatencyTracer.newDictation();
+        final long traceStop = LatencyTracer.begin();
+        traceDictationStart = traceStop;
+        // Taken at stop: the recorder's session is the next recording's once one starts
+        final RecordingSession session = audioRecorder.getLastSession();
         audioRecorder.stopRecording(new AudioRecorder.RecordingCallback() {
             @Override
             public void onRecordingStarted() {}
 
             @Override
             public void onRecordingStopped(final File audioFile) {
+                LatencyTracer.end("recorder stop", traceStop);
+                final long traceHop = LatencyTracer.begin();
                 mainHandler.post(new Runnable() {
                     @Override
                     public void run() {
+                        LatencyTracer.end("main-thread hop", traceHop);
+                        if (session != null) {
+                            session.markHandedOver();
+                        }
+                        audioRecorder.prepareNext(getCacheDir());
+                        String journalId = session != null ? session.getJournalId() : null;
+                        if (session != null && !session.isSpeechDetected()) {
+                            // Nothing left after trimming; don't pay for an empty upload
+                            RecordingSink.delete(audioFile);
+                            RecordingJournal.discard(getFilesDir(), journalId);
+                            resetState();
+                            statusText.setText("🤫 No speech detected");
+                            showToast("No speech detected");
+                            return;
+                        }
+                        if (!passesQualityGate(session, audioFile, journalId)) {
+                            return;
+                        }
+
                         statusText.setText("⏳ Processing...");
+                        if (session != null && session.getTrimmedMillis() >= 100) {
+                            statusText.setText(String.format(Locale.getDefault(),
+                                "⏳ Processing... (%.1fs silence trimmed)", session.getTrimmedMillis() / 1000f));
+                        }
                         processingIndicator.setVisibility(View.VISIBLE);
-                        transcribeAndInsert(audioFile);
+                        if (streamingUpload != null) {
+                            awaitStreamedTranscription(audioFile, journalId, session);
+                        } else {
+                            transcribeAndInsert(audioFile, journalId, session);
+                        }
                     }
                 });
             }
@@ -962,58 +1142,351 @@ public class VoiceKeyboard extends InputMethodService {
         });
     }
 
-    private void transcribeAndInsert(final File audioFile) {
-        new Thread(new Runnable() {
+    private void startStreamingUploadIfEnabled() {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        if (!prefs.getBoolean(KEY_STREAM_UPLOAD, false)) {
+            return;
+        }
+        PcmRingBuffer.Reader reader = audioRecorder.newRecordingReader();
+        if (reader == null) {
+            return;
+        }
+
+        streamFailed = false;
+        streamedText = null;
+        streamedAudioFile = null;
+        final WhisperAPI.StreamingUpload[] self = new WhisperAPI.StreamingUpload[1];
+        self[0] = TranscriptionRouter.transcribeStream(this, reader, audioRecorder.getSampleRate(),
+            prefs.getBoolean(KEY_TRIM_SILENCE, false), new WhisperAPI.StreamingTranscriptionCallback() {
+                @Override
+                public void onPartial(final String textSoFar) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (streamingUpload != self[0]) return;
+                            showPartialTranscript(textSoFar);
+                        }
+                    });
+                }
+
+                @Override
+                public void onSuccess(final String transcription) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (streamingUpload != self[0]) return; // cancelled or superseded
+                            streamedText = transcription;
+                            if (streamedAudioFile != null) {
+                                finishStreamedTranscription();
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void onError(final String error) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (streamingUpload != self[0]) return;
+                            android.util.Log.w("VoiceKeyboard", "Streaming upload failed, will upload file: " + error);
+                            streamFailed = true;
+                            clearPartialTranscript();
+                            if (streamedAudioFile != null) {
+                                File audioFile = streamedAudioFile;
+                                String journalId = streamedJournalId;
+                                RecordingSession session = streamedSession;
+                                clearStreamingState();
+                                transcribeAndInsert(audioFile, journalId, session);
+                            }
+                        }
+                    });
+                }
+            });
+        streamingUpload = self[0];
+    }
+
+    private void awaitStreamedTranscription(File audioFile, String journalId, RecordingSession session) {
+        if (streamFailed) {
+            clearStreamingState();
+            transcribeAndInsert(audioFile, journalId, session);
+            return;
+        }
+        streamedAudioFile = audioFile;
+        streamedJournalId = journalId;
+        streamedSession = session;
+        if (streamedText != null) {
+            finishStreamedTranscription();
+        }
+    }
+
+    private void finishStreamedTranscription() {
+        String transcription = streamedText;
+        File audioFile = streamedAudioFile;
+        String journalId = streamedJournalId;
+        RecordingSession session = streamedSession;
+        clearStreamingState();
+        recordEncodingStats(audioFile, session, true, transcription);
+
+        processingIndicator.setVisibility(View.GONE);
+        statusText.setText("✓ Inserted");
+
+        InputConnection ic = getCurrentInputConnection();
+        if (ic != null) {
+            long traceCommit = LatencyTracer.begin();
+            // Replaces the partial transcript, if one is showing
+            ic.commitText(transcription, 1);
+            showingPartial = false;
+            LatencyTracer.end("commit", traceCommit);
+            LatencyTracer.end("dictation", traceDictationStart);
+            saveToHistory(transcription);
+            RecordingJournal.discard(getFilesDir(), journalId);
+            vibrateHaptic(100); // Success haptic
+            showToast("Text inserted");
+        } else {
+            RecordingJournal.abandon(journalId);
+            showToast("Cannot insert text");
+        }
+
+        RecordingSink.delete(audioFile);
+        resetState();
+    }
+
+    private void clearStreamingState() {
+        // Only abort uploads that are still in flight
+        if (streamingUpload != null && streamedText == null && !streamFailed) {
+            streamingUpload.cancel();
+        }
+        streamingUpload = null;
+        streamedAudioFile = null;
+        streamedJournalId = null;
+        streamedSession = null;
+        streamedText = null;
+        streamFailed = false;
+    }
+
+    /**
+     * @param journalId crash-safe copy of the recording, discarded once the text is
+     *                  inserted and left for recovery otherwise; may be null
+     * @param session   the recording, for the encoding stats; null for a recovered one
+     */
+    private void transcribeAndInsert(final File audioFile, final String journalId, final RecordingSession session) {
+        if (!TranscriptionQueue.isOnline(this)) {
+            queueDictation(audioFile, journalId, "No connection, will transcribe when back online");
+            return;
+        }
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        final int parallelism = prefs.getInt(KEY_SEGMENT_PARALLELISM, 0);
+        final long traceTranscribe = LatencyTracer.begin();
+        TranscriptionRouter.transcribe(this, audioFile, parallelism, new WhisperAPI.StreamingTranscriptionCallback() {
             @Override
-            public void run() {
-                WhisperAPI.transcribeAudio(VoiceKeyboard.this, audioFile, new WhisperAPI.TranscriptionCallback() {
+            public void onPartial(final String textSoFar) {
+                mainHandler.post(new Runnable() {
                     @Override
-                    public void onSuccess(final String transcription) {
-                        mainHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                processingIndicator.setVisibility(View.GONE);
-                                statusText.setText("✓ Inserted");
-
-                                // Insert directly into input field
-                                InputConnection ic = getCurrentInputConnection();
-                                if (ic != null) {
-                                    ic.commitText(transcription, 1);
-                                    saveToHistory(transcription);
-                                    vibrateHaptic(100); // Success haptic
-                                    showToast("Text inserted");
-                                } else {
-                                    showToast("Cannot insert text");
-                                }
+                    public void run() {
+                        showPartialTranscript(textSoFar);
+                    }
+                });
+            }
 
-                                audioFile.delete();
-                                resetState();
-                            }
-                        });
+            @Override
+            public void onSuccess(final String transcription) {
+                LatencyTracer.end("transcribe", traceTranscribe);
+                final long traceHop = LatencyTracer.begin();
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        LatencyTracer.end("main-thread hop", traceHop);
+                        recordEncodingStats(audioFile, session, false, transcription);
+                        processingIndicator.setVisibility(View.GONE);
+                        statusText.setText("✓ Inserted");
+
+                        // Insert directly into input field
+                        InputConnection ic = getCurrentInputConnection();
+                        if (ic != null) {
+                            long traceCommit = LatencyTracer.begin();
+                            // Replaces the partial transcript, if one is showing
+                            ic.commitText(transcription, 1);
+                            showingPartial = false;
+                            LatencyTracer.end("commit", traceCommit);
+                            LatencyTracer.end("dictation", traceDictationStart);
+                            saveToHistory(transcription);
+                            RecordingJournal.discard(getFilesDir(), journalId);
+                            vibrateHaptic(100); // Success haptic
+                            showToast("Text inserted");
+                        } else {
+                            RecordingJournal.abandon(journalId);
+                            showToast("Cannot insert text");
+                        }
+
+                        RecordingSink.delete(audioFile);
+                        resetState();
+                        refreshRecoverButton();
                     }
+                });
+            }
 
+            @Override
+            public void onError(final String error) {
+                mainHandler.post(new Runnable() {
                     @Override
-                    public void onError(final String error) {
-                        mainHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                processingIndicator.setVisibility(View.GONE);
-                                statusText.setText("❌ Error");
-                                showToast("Transcription failed: " + error);
-                                audioFile.delete();
-                                resetState();
-                            }
-                        });
+                    public void run() {
+                        if (WhisperAPI.ERROR_NO_TRANSCRIPTION.equals(error)) {
+                            EncodingStats.recordUpload(VoiceKeyboard.this, true);
+                        }
+                        if (WhisperAPI.isTransient(error)) {
+                            queueDictation(audioFile, journalId, "Transcription failed, will retry: " + error);
+                            return;
+                        }
+                        processingIndicator.setVisibility(View.GONE);
+                        statusText.setText("❌ Error");
+                        showToast("Transcription failed: " + error);
+                        RecordingSink.delete(audioFile);
+                        RecordingJournal.abandon(journalId);
+                        resetState();
+                        refreshRecoverButton();
                     }
                 });
             }
-        }).start();
+        });
+    }
+
+    // Underlined in the text field until the final transcript replaces it
+    private void showPartialTranscript(String text) {
+        InputConnection ic = getCurrentInputConnection();
+        // Nothing is waiting for it any more (cancelled, failed or already committed)
+        if (ic == null || processingIndicator.getVisibility() != View.VISIBLE) return;
+        if (!showingPartial) {
+            LatencyTracer.end("first words shown", traceDictationStart);
+        }
+        ic.setComposingText(text, 1);
+        showingPartial = true;
+        statusText.setText("✍️ Transcribing...");
+    }
+
+    private void clearPartialTranscript() {
+        if (!showingPartial) return;
+        showingPartial = false;
+        InputConnection ic = getCurrentInputConnection();
+        if (ic != null) {
+            ic.setComposingText("", 1);
+            ic.finishComposingText();
+        }
+    }
+
+    // The queue takes over the audio and the journal; results arrive via history and a notification
+    private void queueDictation(File audioFile, String journalId, String message) {
+        TranscriptionQueue.enqueue(this, audioFile, journalId);
+        processingIndicator.setVisibility(View.GONE);
+        statusText.setText("📥 Queued");
+        showToast(message);
+        resetState();
+    }
+
+    // Stops capture without transcribing; a journaled recording stays recoverable
+    private void releaseRecorder() {
+        audioRecorder.release();
+        RecordingSession session = audioRecorder.getLastSession();
+        if (session != null) {
+            RecordingJournal.abandon(session.getJournalId());
+        }
+    }
+
+    /**
+     * Shows the recover button when a journaled dictation was left untranscribed,
+     * e.g. because the process was killed mid-recording.
+     */
+    private void refreshRecoverButton() {
+        final File filesDir = getFilesDir();
+        TaskScheduler.background(TaskScheduler.Priority.BACKGROUND, "find unfinished", new Runnable() {
+            @Override
+            public void run() {
+                final List<RecordingJournal.Unfinished> unfinished = RecordingJournal.findUnfinished(filesDir);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (recoverBtn == null) return;
+                        if (unfinished.isEmpty() || isRecording) {
+                            recoverBtn.setVisibility(View.GONE);
+                            return;
+                        }
+                        long seconds = unfinished.get(0).getDurationMillis() / 1000;
+                        recoverBtn.setText("♻️ Recover " + formatTime(seconds)
+                            + (unfinished.size() > 1 ? " (+" + (unfinished.size() - 1) + ")" : ""));
+                        recoverBtn.setVisibility(View.VISIBLE);
+                    }
+                });
+            }
+        });
+    }
+
+    private void recoverDictation() {
+        recoverBtn.setVisibility(View.GONE);
+        statusText.setText("⏳ Recovering...");
+        processingIndicator.setVisibility(View.VISIBLE);
+        final File filesDir = getFilesDir();
+        final File cacheDir = getCacheDir();
+        TaskScheduler.background(TaskScheduler.Priority.INTERACTIVE, "recover dictation", new Runnable() {
+            @Override
+            public void run() {
+                List<RecordingJournal.Unfinished> unfinished = RecordingJournal.findUnfinished(filesDir);
+                if (unfinished.isEmpty()) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            resetState();
+                        }
+                    });
+                    return;
+                }
+
+                final RecordingJournal.Unfinished newest = unfinished.get(0);
+                try {
+                    final File audioFile = newest.assemble(cacheDir);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            statusText.setText("⏳ Processing recovered dictation...");
+                            transcribeAndInsert(audioFile, newest.getId(), null);
+                        }
+                    });
+                } catch (final IOException e) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            resetState();
+                            statusText.setText("❌ Error");
+                            showToast("Recovery failed: " + e.getMessage());
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private void discardUnfinishedDictations() {
+        final File filesDir = getFilesDir();
+        TaskScheduler.background(TaskScheduler.Priority.BACKGROUND, "discard unfinished", new Runnable() {
+            @Override
+            public void run() {
+                for (RecordingJournal.Unfinished unfinished : RecordingJournal.findUnfinished(filesDir)) {
+                    RecordingJournal.discard(filesDir, unfinished.getId());
+                }
+            }
+        });
+        recoverBtn.setVisibility(View.GONE);
+        showToast("Unfinished dictations discarded");
     }
 
     private void cancelRecording() {
         vibrateHaptic(30); // Haptic on cancel
         audioRecorder.release();
+        RecordingSession session = audioRecorder.getLastSession();
+        if (session != null) {
+            RecordingJournal.discard(getFilesDir(), session.getJournalId());
+        }
         resetState();
+        readyNextRecording();
         showToast("Recording cancelled");
     }
 
@@ -1034,36 +1507,81 @@ public class VoiceKeyboard extends InputMethodService {
     private void togglePause() {
         if (isPaused) {
             // Resume
-            audioRecorder.resumeRecording();
+            if (!audioRecorder.resumeRecording()) {
+                showToast("Could not resume recording");
+                return;
+            }
             isPaused = false;
             pauseBtn.setText("⏸ Pause");
             statusText.setText("🔴 Recording...");
-            pausedTime += System.currentTimeMillis() - recordingStartTime;
-            recordingStartTime = System.currentTimeMillis();
             mainHandler.post(timerRunnable);
-            mainHandler.post(amplitudeRunnable); // Resume amplitude
+            startLevelUpdates(); // Resume amplitude
             amplitudeIndicator.setVisibility(View.VISIBLE);
             vibrateHaptic(30);
             showToast("Recording resumed");
         } else {
             // Pause
-            audioRecorder.pauseRecording();
+            if (!audioRecorder.pauseRecording()) {
+                showToast("Could not pause recording");
+                return;
+            }
             isPaused = true;
             pauseBtn.setText("▶️ Resume");
             statusText.setText("⏸ Paused");
             mainHandler.removeCallbacks(timerRunnable);
-            mainHandler.removeCallbacks(amplitudeRunnable); // Pause amplitude
+            stopLevelUpdates(); // Pause amplitude
             amplitudeIndicator.setVisibility(View.GONE);
             vibrateHaptic(30);
             showToast("Recording paused");
         }
     }
 
+    private void recordEncodingStats(File audioFile, RecordingSession session, boolean streamed, String transcription) {
+        EncodingStats.recordUpload(this, transcription == null || transcription.trim().isEmpty());
+        if (session == null || session.getHandedOverAt() == 0) return;
+        EncodingStats.record(this, session.getFormat() + (streamed ? " streamed" : ""), RecordingSink.length(audioFile),
+            session.getCapturedMillis(), SystemClock.elapsedRealtime() - session.getHandedOverAt());
+    }
+
+    /**
+     * Checks the measured audio quality before anything is sent. Unusable recordings
+     * are dropped here (unless the user chose to only be warned) and a streaming
+     * upload still in flight is cancelled; doubtful ones go ahead with a warning.
+     * Returns false when the recording was dropped and the UI reset.
+     */
+    private boolean passesQualityGate(RecordingSession session, File audioFile, String journalId) {
+        AudioQualityAnalyzer.Report quality = session != null ? session.getQuality() : null;
+        if (quality == null) return true; // MediaRecorder output isn't analyzed
+
+        AudioQualityAnalyzer.Verdict verdict = quality.getVerdict();
+        if (verdict == AudioQualityAnalyzer.Verdict.OK) return true;
+
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        if (verdict == AudioQualityAnalyzer.Verdict.REJECT && prefs.getBoolean(KEY_QUALITY_GATE, true)) {
+            android.util.Log.d("VoiceKeyboard", "Quality gate skipped upload: " + quality);
+            clearStreamingState();
+            RecordingSink.delete(audioFile);
+            RecordingJournal.discard(getFilesDir(), journalId);
+            EncodingStats.recordSkipped(this);
+            resetState();
+            statusText.setText("🤫 " + quality.describeProblem());
+            showToast(quality.describeProblem() + ", nothing sent");
+            return false;
+        }
+        showToast(quality.describeProblem());
+        return true;
+    }
+
     private void saveToHistory(String text) {
+        saveToHistory(this, text);
+    }
+
+    // Also called from TranscriptionQueue's network threads
+    static synchronized void saveToHistory(Context context, String text) {
         String timestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault()).format(new Date());
         String entry = timestamp + "|||" + text;
 
-        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
         String history = prefs.getString(KEY_HISTORY, "");
 
         if (!history.isEmpty()) {
@@ -1226,7 +1744,7 @@ public class VoiceKeyboard extends InputMethodService {
     private void openTemplates() {
         // Cancel any ongoing recording
         if (isRecording) {
-            audioRecorder.release();
+            releaseRecorder();
             resetState();
         }
 
@@ -1414,7 +1932,7 @@ public class VoiceKeyboard extends InputMethodService {
     private void showHistory() {
         // Cancel any ongoing recording
         if (isRecording) {
-            audioRecorder.release();
+            releaseRecorder();
             resetState();
         }
 
@@ -1424,11 +1942,12 @@ public class VoiceKeyboard extends InputMethodService {
     }
 
     private void resetState() {
+        clearStreamingState();
+        clearPartialTranscript();
         mainHandler.removeCallbacks(timerRunnable);
-        mainHandler.removeCallbacks(amplitudeRunnable);
+        stopLevelUpdates();
         isRecording = false;
         isPaused = false;
-        pausedTime = 0;
 
         recordBtn.setVisibility(View.VISIBLE);
         pauseBtn.setVisibility(View.GONE);
@@ -1466,57 +1985,84 @@ public class VoiceKeyboard extends InputMethodService {
         }
     }
 
+    private void startLevelUpdates() {
+        stopLevelUpdates();
+        if (audioRecorder.getLevelMeter() != null) {
+            Choreographer.getInstance().postFrameCallback(levelFrameCallback);
+        } else {
+            mainHandler.post(amplitudeRunnable);
+        }
+    }
+
+    private void stopLevelUpdates() {
+        mainHandler.removeCallbacks(amplitudeRunnable);
+        Choreographer.getInstance().removeFrameCallback(levelFrameCallback);
+    }
+
     private void updateAmplitudeIndicator(int amplitude) {
-        // Normalize amplitude (0-32767) to width (50-300 dp) - horizontal bar
-        int maxAmplitude = 32767;
+        // Normalize amplitude (0-32767) linearly, as MediaRecorder peaks are coarse anyway
+        float normalized = (float) amplitude / 32767;
+        applyLevel(normalized, normalized);
+    }
+
+    private void updateLevelIndicator(LevelMeter.Snapshot snapshot) {
+        // Hold the loudest of the last few frames so the bar doesn't flicker at display rate
+        int rms = 0;
+        for (int i = LevelMeter.HISTORY_SIZE - 3; i < LevelMeter.HISTORY_SIZE; i++) {
+            rms = Math.max(rms, snapshot.history[i]);
+        }
+        // -60..0 dBFS RMS maps onto the bar; speech sits around -30..-10
+        float db = rms > 0 ? (float) (20 * Math.log10(rms / 32768.0)) : -60;
+        float normalized = Math.max(0f, Math.min(1f, (db + 60) / 60));
+        applyLevel(normalized, snapshot.peak / 32767f);
+    }
+
+    private void applyLevel(float normalized, float peak) {
+        // Width 50-300 dp - horizontal bar
         int minWidth = 50;
         int maxWidth = 300;
-
-        float normalized = (float) amplitude / maxAmplitude;
         int width = (int) (minWidth + (normalized * (maxWidth - minWidth)));
         width = Math.max(minWidth, Math.min(maxWidth, width));
 
-        // Animate color based on amplitude: red -> yellow -> green
+        // Animate color based on level: red -> yellow -> green
         int color;
         if (normalized < 0.4f) {
             // Red zone (low volume)
-            color = Color.parseColor("#FF5722");
+            color = LEVEL_RED;
         } else if (normalized < 0.7f) {
             // Yellow zone (medium volume) - transition from red to yellow
-            float localNorm = (normalized - 0.4f) / 0.3f;
-            int red = Color.parseColor("#FF5722");
-            int yellow = Color.parseColor("#FFC107");
-            color = blendColors(red, yellow, localNorm);
+            color = blendColors(LEVEL_RED, LEVEL_YELLOW, (normalized - 0.4f) / 0.3f);
         } else {
             // Green zone (high volume) - transition from yellow to green
-            float localNorm = (normalized - 0.7f) / 0.3f;
-            int yellow = Color.parseColor("#FFC107");
-            int green = Color.parseColor("#4CAF50");
-            color = blendColors(yellow, green, localNorm);
+            color = blendColors(LEVEL_YELLOW, LEVEL_GREEN, (normalized - 0.7f) / 0.3f);
         }
 
-        // Update the waveform bar with gradient and glow effect
-        GradientDrawable shape = new GradientDrawable();
-        shape.setShape(GradientDrawable.RECTANGLE);
-        int lighterColor = lightenColor(color, 0.3f);
-        shape.setColors(new int[]{lighterColor, color});
-        shape.setGradientType(GradientDrawable.LINEAR_GRADIENT);
-        shape.setOrientation(GradientDrawable.Orientation.LEFT_RIGHT);
-        shape.setCornerRadius(dpToPx(4));
-
-        // Add glow effect for higher amplitudes
-        if (normalized > 0.5f) {
-            int glowAlpha = (int) ((normalized - 0.5f) * 2 * 150); // 0-150 alpha
-            int glowColor = Color.argb(glowAlpha, Color.red(color), Color.green(color), Color.blue(color));
-            shape.setStroke(dpToPx(2), glowColor);
+        // Update the waveform bar in place: same drawable, same color array
+        amplitudeColors[0] = lightenColor(color, 0.3f);
+        amplitudeColors[1] = color;
+        amplitudeShape.setColors(amplitudeColors);
+
+        // Add glow effect for louder peaks. setStroke allocates a ColorStateList, so the glow
+        // takes the zone's color in 10 alpha steps and is only set when that changes
+        int glow = Color.TRANSPARENT;
+        int glowAlpha = peak > 0.5f ? (int) (Math.min(1f, (peak - 0.5f) * 2) * 10) * 15 : 0; // 0-150 alpha
+        if (glowAlpha > 0) {
+            int zone = normalized < 0.4f ? LEVEL_RED : normalized < 0.7f ? LEVEL_YELLOW : LEVEL_GREEN;
+            glow = Color.argb(glowAlpha, Color.red(zone), Color.green(zone), Color.blue(zone));
+        }
+        if (glow != amplitudeGlow) {
+            amplitudeGlow = glow;
+            amplitudeShape.setStroke(glow != Color.TRANSPARENT ? dpToPx(2) : 0, glow);
         }
 
-        amplitudeIndicator.setBackground(shape);
-
-        LinearLayout.LayoutParams params = (LinearLayout.LayoutParams) amplitudeIndicator.getLayoutParams();
-        params.width = dpToPx(width);
-        params.height = dpToPx(8); // Keep height constant at 8dp
-        amplitudeIndicator.setLayoutParams(params);
+        int widthPx = dpToPx(width);
+        if (widthPx != amplitudeWidthPx) {
+            amplitudeWidthPx = widthPx;
+            LinearLayout.LayoutParams params = (LinearLayout.LayoutParams) amplitudeIndicator.getLayoutParams();
+            params.width = widthPx;
+            params.height = dpToPx(8); // Keep height constant at 8dp
+            amplitudeIndicator.setLayoutParams(params);
+        }
     }
 
     // Helper method to blend two colors
@@ -1533,21 +2079,39 @@ public class VoiceKeyboard extends InputMethodService {
         super.onFinishInputView(finishingInput);
         // Cancel any ongoing recording when keyboard is closed
         if (isRecording) {
-            audioRecorder.release();
+            releaseRecorder();
             resetState();
             showToast("Recording cancelled - keyboard closed");
         }
     }
 
+    @Override
+    public void onStartInputView(EditorInfo info, boolean restarting) {
+        super.onStartInputView(info, restarting);
+        if (!isRecording) {
+            // Pick up settings changed while hidden, then get the microphone ready
+            applyRecorderSettings();
+            readyNextRecording();
+            refreshRecoverButton();
+        }
+        // The TLS handshake runs while the user finds the mic button
+        ConnectionManager.prewarm(this);
+        // Anything queued while offline whose retry time has come
+        TranscriptionQueue.drain(this);
+    }
+
     @Override
     public void onWindowHidden() {
         super.onWindowHidden();
         // Cancel any ongoing recording when keyboard is hidden
         if (isRecording) {
-            audioRecorder.release();
+            releaseRecorder();
             resetState();
             showToast("Recording cancelled - keyboard hidden");
         }
+        // Never hold the microphone while the keyboard is off screen
+        audioRecorder.stopPreRoll();
+        audioRecorder.discardPrepared();
     }
 
     @Override
@@ -1555,7 +2119,7 @@ public class VoiceKeyboard extends InputMethodService {
         super.onFinishInput();
         // Cancel any ongoing recording when input finishes
         if (isRecording) {
-            audioRecorder.release();
+            releaseRecorder();
             resetState();
         }
     }
@@ -1565,14 +2129,14 @@ public class VoiceKeyboard extends InputMethodService {
         super.onDestroy();
         // Clean up resources
         if (isRecording && audioRecorder != null) {
-            audioRecorder.release();
+            releaseRecorder();
         }
         if (audioRecorder != null) {
             audioRecorder.release();
         }
         if (mainHandler != null) {
             mainHandler.removeCallbacks(timerRunnable);
-            mainHandler.removeCallbacks(amplitudeRunnable);
+            stopLevelUpdates();
         }
     }
 }
@@ -0,0 +1,130 @@
+package com.fastkeyboard;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Helpers for 16-bit little-endian PCM WAV files.
+ */
+public class WavFormat {
+    public static final int HEADER_SIZE = 44;
+
+    /**
+     * A canonical 44-byte header. Lengths past what the 32-bit size fields hold, e.g.
+     * {@code Long.MAX_VALUE} for a stream of unknown length, are clamped so the RIFF size
+     * is 0xFFFFFFFF and the data size 0xFFFFFFDB, which readers take as "until the end".
+     */
+    public static byte[] header(int sampleRate, int channels, long dataBytes) {
+        int byteRate = sampleRate * channels * 2;
+        long dataSize = Math.min(0xFFFFFFFFL - (HEADER_SIZE - 8), dataBytes);
+        long riffSize = dataSize + HEADER_SIZE - 8;
+
+        byte[] header = new byte[HEADER_SIZE];
+        putAscii(header, 0, "RIFF");
+        putInt(header, 4, riffSize);
+        putAscii(header, 8, "WAVE");
+        putAscii(header, 12, "fmt ");
+        putInt(header, 16, 16);            // fmt chunk size
+        putShort(header, 20, 1);           // PCM
+        putShort(header, 22, channels);
+        putInt(header, 24, sampleRate);
+        putInt(header, 28, byteRate);
+        putShort(header, 32, channels * 2); // block align
+        putShort(header, 34, 16);          // bits per sample
+        putAscii(header, 36, "data");
+        putInt(header, 40, dataSize);
+        return header;
+    }
+
+    /**
+     * Rewrites the size fields of a finished file whose header was written with a
+     * placeholder length.
+     */
+    public static void finalizeHeader(File file, int sampleRate, int channels) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long dataBytes = Math.max(0, raf.length() - HEADER_SIZE);
+            raf.seek(0);
+            raf.write(header(sampleRate, channels, dataBytes));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Sample rate of a canonical 44-byte-header, 16-bit mono PCM WAV (the layout this
+     * app writes), or -1 for anything else.
+     */
+    public static int readMonoPcmSampleRate(File file) throws IOException {
+        if (!file.getName().endsWith(".wav") || file.length() < HEADER_SIZE) {
+            return -1;
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.readFully(header);
+        } finally {
+            raf.close();
+        }
+        boolean canonical = "RIFF".equals(new String(header, 0, 4, "US-ASCII"))
+                && "WAVE".equals(new String(header, 8, 4, "US-ASCII"))
+                && "data".equals(new String(header, 36, 4, "US-ASCII"));
+        int format = (header[20] & 0xFF) | ((header[21] & 0xFF) << 8);
+        int channels = (header[22] & 0xFF) | ((header[23] & 0xFF) << 8);
+        int bits = (header[34] & 0xFF) | ((header[35] & 0xFF) << 8);
+        if (!canonical || format != 1 || channels != 1 || bits != 16) {
+            return -1;
+        }
+        return (header[24] & 0xFF) | ((header[25] & 0xFF) << 8)
+                | ((header[26] & 0xFF) << 16) | ((header[27] & 0xFF) << 24);
+    }
+
+    /**
+     * Converts samples to little-endian bytes. {@code dst} must hold {@code length * 2} bytes.
+     */
+    public static void toBytes(short[] src, int offset, int length, byte[] dst) {
+        for (int i = 0; i < length; i++) {
+            short sample = src[offset + i];
+            dst[i * 2] = (byte) sample;
+            dst[i * 2 + 1] = (byte) (sample >> 8);
+        }
+    }
+
+    /**
+     * Writes samples of any length through a reusable scratch buffer.
+     */
+    public static void writeSamples(OutputStream out, short[] src, int offset, int length, byte[] scratch) throws IOException {
+        int block = scratch.length / 2;
+        while (length > 0) {
+            int count = Math.min(length, block);
+            toBytes(src, offset, count, scratch);
+            out.write(scratch, 0, count * 2);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    public static long samplesToMillis(long samples, int sampleRate) {
+        return samples * 1000L / sampleRate;
+    }
+
+    private static void putAscii(byte[] dst, int offset, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            dst[offset + i] = (byte) value.charAt(i);
+        }
+    }
+
+    private static void putInt(byte[] dst, int offset, long value) {
+        dst[offset] = (byte) value;
+        dst[offset + 1] = (byte) (value >> 8);
+        dst[offset + 2] = (byte) (value >> 16);
+        dst[offset + 3] = (byte) (value >> 24);
+    }
+
+    private static void putShort(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) value;
+        dst[offset + 1] = (byte) (value >> 8);
+    }
+}
@@ -3,47 +3,103 @@ package com.fastkeyboard;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.util.Log;
-import android.net.ConnectivityManager;
-import android.net.Network;
 import android.net.NetworkCapabilities;
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLHandshakeException;
 
 public class WhisperAPI {
     private static final String TAG = "VoiceKeyboard";
     private static final String PREFS_NAME = "VoiceKeyboardPrefs";
-    private static final String KEY_API_URL = "whisper_api_url";
-    private static final String KEY_API_KEY = "whisper_api_key";
     private static final String KEY_TRANSCRIPTION_PROMPT = "transcription_prompt";
-    private static final String KEY_WHISPER_MODEL = "whisper_model";
+    private static final String KEY_STREAM_RESULTS = "stream_results";
+
+    /** Reported when the API answered 200 without any text, e.g. for silent audio. */
+    public static final String ERROR_NO_TRANSCRIPTION = "No transcription found";
+    /** Starts errors a later attempt can get past; see {@link #isTransient(String)}. */
+    public static final String ERROR_TRANSIENT = "Temporary failure: ";
+
+    // ~250 ms of 16 kHz mono PCM per chunk; the tail left to send on stop is at most this
+    private static final int STREAM_CHUNK_BYTES = 8192;
+    private static final long STREAM_POLL_MS = 100;
+    // Same trimming as PcmRecorder's file writer so both paths send identical audio
+    private static final int STREAM_TRIM_PAD_MS = 200;
+    private static final int STREAM_TRIM_MAX_PAUSE_MS = 800;
 
     public interface TranscriptionCallback {
         void onSuccess(String transcription);
         void onError(String error);
     }
 
-    public static void transcribeAudio(final Context context, final File audioFile, final TranscriptionCallback callback) {
-        new Thread(new Runnable() {
+    /**
+     * A callback that can show the transcript while it is still arriving. With the
+     * live transcript setting on, the request asks for a streamed response and
+     * {@link #onPartial} gets the text so far after each delta; {@code onSuccess}
+     * still follows with the final text. Servers or models that don't stream
+     * (whisper-1) just answer once.
+     */
+    public interface StreamingTranscriptionCallback extends TranscriptionCallback {
+        void onPartial(String textSoFar);
+    }
+
+    /**
+     * Implemented by callbacks that must know when the answer came from
+     * {@link TranscriptCache} rather than the server; told just before onSuccess.
+     */
+    public interface CacheHitListener {
+        void onCacheHit();
+    }
+
+    /**
+     * Handle for an upload that is still receiving audio from the recorder.
+     */
+    public static class StreamingUpload {
+        private volatile boolean cancelled = false;
+        private volatile HttpURLConnection connection;
+
+        public void cancel() {
+            cancelled = true;
+            HttpURLConnection conn = connection;
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * Sends {@code audioFile} to one OpenAI-compatible endpoint; callers go through
+     * {@link TranscriptionRouter}, which decides which one.
+     *
+     * @param promptOverride sent as {@code prompt} instead of the configured transcription
+     *                       prompt, e.g. the preceding segment's text; null to use the setting
+     */
+    public static void transcribeAudio(final Context context, final String apiUrl, final String apiKey,
+                                       final String whisperModel, final File audioFile, final String promptOverride,
+                                       final TranscriptionCallback callback) {
+        TaskScheduler.network(TaskScheduler.Priority.INTERACTIVE, "transcribe " + audioFile.getName(), new Runnable() {
             @Override
             public void run() {
                 try {
                     Log.d(TAG, "WhisperAPI: Starting transcription");
 
-                    // Force IPv4
-                    System.setProperty("java.net.preferIPv4Stack", "true");
-                    System.setProperty("java.net.preferIPv6Addresses", "false");
-
                     SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-                    String apiUrl = prefs.getString(KEY_API_URL, "");
-                    String apiKey = prefs.getString(KEY_API_KEY, "");
-                    String transcriptionPrompt = prefs.getString(KEY_TRANSCRIPTION_PROMPT, "");
-                    String whisperModel = prefs.getString(KEY_WHISPER_MODEL, "whisper-1");
+                    String transcriptionPrompt = promptOverride != null
+                            ? promptOverride
+                            : prefs.getString(KEY_TRANSCRIPTION_PROMPT, "");
 
                     Log.d(TAG, "WhisperAPI: Full URL=" + apiUrl);
                     Log.d(TAG, "WhisperAPI: Key length=" + apiKey.length());
@@ -55,161 +111,359 @@ public class WhisperAPI {
                         return;
                     }
 
-                    // Get active network and bind to it
-                    ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-                    Network activeNetwork = null;
-
-                    if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
-                        activeNetwork = cm.getActiveNetwork();
-                        if (activeNetwork != null) {
-                            Log.d(TAG, "WhisperAPI: Using active network: " + activeNetwork);
-                        } else {
-                            Log.e(TAG, "WhisperAPI: No active network found");
+                    // No language is sent; the server detects it
+                    final String cacheKey = TranscriptCache.key(audioFile, apiUrl, whisperModel, transcriptionPrompt, null);
+                    String cached = TranscriptCache.get(context, cacheKey);
+                    if (cached != null) {
+                        Log.d(TAG, "WhisperAPI: Cached transcription, nothing sent");
+                        if (callback instanceof CacheHitListener) {
+                            ((CacheHitListener) callback).onCacheHit();
                         }
+                        callback.onSuccess(cached);
+                        return;
+                    }
+
+                    final MultipartBody body = new MultipartBody()
+                            .addField("model", whisperModel)
+                            .addField("response_format", "json");
+                    if (!transcriptionPrompt.isEmpty()) {
+                        body.addField("prompt", transcriptionPrompt);
                     }
+                    addStreamField(body, prefs, callback);
+                    body.setFile("file", audioFile.getName(), contentTypeFor(audioFile), audioFile);
+
+                    HttpURLConnection conn = RequestPolicy.TRANSCRIPTION.execute("transcribe " + audioFile.getName(),
+                            new RequestPolicy.Request<HttpURLConnection>() {
+                        @Override
+                        public HttpURLConnection run(RequestPolicy.Attempt attempt) throws IOException {
+                            long traceConnect = LatencyTracer.begin();
+                            HttpURLConnection conn = attempt.configure(ConnectionManager.open(context, apiUrl));
+                            conn.setDoOutput(true);
+                            conn.setDoInput(true);
+                            conn.setRequestMethod("POST");
+                            conn.setRequestProperty("Content-Type", body.getContentType());
+                            conn.setRequestProperty("Authorization", "Bearer " + apiKey);
+                            conn.setUseCaches(false);
+                            // Without this HttpURLConnection holds the whole body in heap before sending
+                            conn.setFixedLengthStreamingMode(body.getContentLength());
 
-                    // Try to resolve DNS manually with network binding
-                    try {
-                        java.net.InetAddress[] addresses;
-                        if (activeNetwork != null && android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
-                            addresses = activeNetwork.getAllByName("api.openai.com");
-                        } else {
-                            addresses = java.net.InetAddress.getAllByName("api.openai.com");
+                            OutputStream request = conn.getOutputStream();
+                            LatencyTracer.end("connect", traceConnect);
+                            long traceUpload = LatencyTracer.begin();
+                            // Straight from memory when the recorder kept the audio in a RecordingSink
+                            body.writeTo(request);
+                            request.close();
+                            attempt.sent();
+                            LatencyTracer.end("upload", traceUpload);
+
+                            attempt.checkStatus(conn, awaitStatus(conn));
+                            return conn;
                         }
-                        Log.d(TAG, "WhisperAPI: DNS resolved to " + addresses.length + " addresses");
-                        for (java.net.InetAddress addr : addresses) {
-                            Log.d(TAG, "WhisperAPI: Address: " + addr.getHostAddress());
+                    });
+
+                    handleResponse(conn, new StreamingTranscriptionCallback() {
+                        @Override
+                        public void onPartial(String textSoFar) {
+                            if (callback instanceof StreamingTranscriptionCallback) {
+                                ((StreamingTranscriptionCallback) callback).onPartial(textSoFar);
+                            }
                         }
-                    } catch (Exception dnsEx) {
-                        Log.e(TAG, "WhisperAPI: DNS resolution failed: " + dnsEx.getMessage());
-                    }
 
-                    String boundary = "----WebKitFormBoundary" + System.currentTimeMillis();
-                    String CRLF = "\r\n";
+                        @Override
+                        public void onSuccess(String transcription) {
+                            TranscriptCache.put(context, cacheKey, transcription);
+                            callback.onSuccess(transcription);
+                        }
+
+                        @Override
+                        public void onError(String error) {
+                            callback.onError(error);
+                        }
+                    });
+                } catch (Exception e) {
+                    Log.e(TAG, "WhisperAPI: Exception - " + e.getClass().getName() + ": " + e.getMessage(), e);
+                    e.printStackTrace();
+                    callback.onError(describe(e));
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts a transcription request whose audio is read from the recorder's PCM ring
+     * while recording is still in progress. The multipart body is sent with chunked
+     * transfer encoding; once the ring is closed by stopRecording only the last chunk
+     * remains to be sent before the server answers.
+     *
+     * With {@code trimSilence} the audio passes through the same {@link SilenceTrimmer}
+     * stage as the recorded file, so held-back trailing silence is simply dropped on stop.
+     *
+     * If the upload falls so far behind that the ring overwrites unsent audio, the
+     * stream is abandoned with an error so the caller can upload the finished file.
+     */
+    public static StreamingUpload transcribeStream(final Context context, final String apiUrl, final String apiKey,
+                                                   final String whisperModel, final PcmRingBuffer.Reader reader,
+                                                   final int sampleRate, final boolean trimSilence,
+                                                   final TranscriptionCallback callback) {
+        final StreamingUpload upload = new StreamingUpload();
+        // Its own thread, like the recorder's writers: it lives as long as the recording, and
+        // queued behind segment uploads on the network pool the ring would overwrite unsent audio
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Log.d(TAG, "WhisperAPI: Starting streaming transcription");
 
-                    URL url = new URL(apiUrl);
-                    HttpURLConnection conn;
+                    SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+                    String transcriptionPrompt = prefs.getString(KEY_TRANSCRIPTION_PROMPT, "");
 
-                    // Bind connection to active network
-                    if (activeNetwork != null && android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
-                        conn = (HttpURLConnection) activeNetwork.openConnection(url);
-                        Log.d(TAG, "WhisperAPI: Opened connection using active network");
-                    } else {
-                        conn = (HttpURLConnection) url.openConnection();
-                        Log.d(TAG, "WhisperAPI: Opened connection using default");
+                    if (apiUrl.isEmpty() || apiKey.isEmpty()) {
+                        Log.e(TAG, "WhisperAPI: API not configured");
+                        callback.onError("API not configured. Please open VoiceOverlay app and configure settings.");
+                        return;
                     }
-                    conn.setDoOutput(true);
-                    conn.setDoInput(true);
-                    conn.setRequestMethod("POST");
-                    conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
-                    conn.setRequestProperty("Authorization", "Bearer " + apiKey);
-                    conn.setUseCaches(false);
-
-                    DataOutputStream request = new DataOutputStream(conn.getOutputStream());
-
-                    // Add model parameter
-                    request.writeBytes("--" + boundary + CRLF);
-                    request.writeBytes("Content-Disposition: form-data; name=\"model\"" + CRLF);
-                    request.writeBytes(CRLF);
-                    request.writeBytes(whisperModel + CRLF);
-
-                    // Add response_format parameter
-                    request.writeBytes("--" + boundary + CRLF);
-                    request.writeBytes("Content-Disposition: form-data; name=\"response_format\"" + CRLF);
-                    request.writeBytes(CRLF);
-                    request.writeBytes("json" + CRLF);
-
-                    // Add prompt parameter if provided
+
+                    final MultipartBody body = new MultipartBody()
+                            .addField("model", whisperModel)
+                            .addField("response_format", "json");
                     if (!transcriptionPrompt.isEmpty()) {
-                        request.writeBytes("--" + boundary + CRLF);
-                        request.writeBytes("Content-Disposition: form-data; name=\"prompt\"" + CRLF);
-                        request.writeBytes(CRLF);
-                        request.writeBytes(transcriptionPrompt + CRLF);
+                        body.addField("prompt", transcriptionPrompt);
                     }
+                    addStreamField(body, prefs, callback);
+                    body.setFile("file", "voice_stream.wav", "audio/wav", null);
 
-                    // Add file
-                    request.writeBytes("--" + boundary + CRLF);
-                    request.writeBytes("Content-Disposition: form-data; name=\"file\"; filename=\"" + audioFile.getName() + "\"" + CRLF);
-                    String contentType = audioFile.getName().endsWith(".m4a") ? "audio/mp4" : "audio/mpeg";
-                    request.writeBytes("Content-Type: " + contentType + CRLF);
-                    request.writeBytes(CRLF);
-
-                    FileInputStream fileInputStream = new FileInputStream(audioFile);
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                        request.write(buffer, 0, bytesRead);
-                    }
-                    fileInputStream.close();
-
-                    request.writeBytes(CRLF);
-                    request.writeBytes("--" + boundary + "--" + CRLF);
-
-                    request.flush();
-                    request.close();
-
-                    int responseCode = conn.getResponseCode();
-                    Log.d(TAG, "WhisperAPI: Response code=" + responseCode);
-                    if (responseCode == HttpURLConnection.HTTP_OK) {
-                        BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-                        StringBuilder response = new StringBuilder();
-                        String line;
-                        while ((line = in.readLine()) != null) {
-                            response.append(line);
-                        }
-                        in.close();
+                    HttpURLConnection conn = RequestPolicy.STREAMING.execute("stream upload",
+                            new RequestPolicy.Request<HttpURLConnection>() {
+                        @Override
+                        public HttpURLConnection run(RequestPolicy.Attempt attempt) throws IOException {
+                            HttpURLConnection conn = attempt.configure(ConnectionManager.open(context, apiUrl));
+                            upload.connection = conn;
+                            conn.setDoOutput(true);
+                            conn.setDoInput(true);
+                            conn.setRequestMethod("POST");
+                            conn.setRequestProperty("Content-Type", body.getContentType());
+                            conn.setRequestProperty("Authorization", "Bearer " + apiKey);
+                            conn.setUseCaches(false);
+                            conn.setChunkedStreamingMode(STREAM_CHUNK_BYTES);
 
-                        // Parse JSON response - simple extraction
-                        String jsonResponse = response.toString();
-                        String text = extractTextFromJSON(jsonResponse);
+                            // Connects (DNS, TCP, TLS) while the user is still speaking
+                            OutputStream request = conn.getOutputStream();
+                            body.writePreamble(request);
 
-                        Log.d(TAG, "WhisperAPI: Extracted text=" + (text != null ? text : "NULL"));
+                            // Length is unknown until stop; decoders treat the maximum size as "until EOF"
+                            request.write(WavFormat.header(sampleRate, 1, Long.MAX_VALUE));
+                            long firstSample = reader.getPosition();
+                            streamPcm(reader, request, upload, sampleRate, trimSilence);
+                            if (upload.isCancelled()) {
+                                return null;
+                            }
 
-                        if (text != null && !text.isEmpty()) {
-                            callback.onSuccess(text);
-                        } else {
-                            Log.e(TAG, "WhisperAPI: No transcription found in response");
-                            callback.onError("No transcription found");
-                        }
-                    } else {
-                        // Read error response
-                        BufferedReader errorReader = new BufferedReader(new InputStreamReader(conn.getErrorStream()));
-                        StringBuilder errorResponse = new StringBuilder();
-                        String errorLine;
-                        while ((errorLine = errorReader.readLine()) != null) {
-                            errorResponse.append(errorLine);
-                        }
-                        errorReader.close();
+                            long traceTail = LatencyTracer.begin();
+                            body.writeEpilogue(request);
+                            request.close();
+                            attempt.sent();
+                            LatencyTracer.end("upload tail", traceTail);
 
-                        String errorMsg = errorResponse.toString();
-                        Log.e(TAG, "WhisperAPI: HTTP Error " + responseCode + ": " + errorMsg);
-                        callback.onError("HTTP Error " + responseCode + ": " + errorMsg);
+                            Log.d(TAG, "WhisperAPI: Streamed " + ((reader.getPosition() - firstSample) * 2) + " audio bytes");
+                            attempt.checkStatus(conn, awaitStatus(conn));
+                            return conn;
+                        }
+                    });
+                    if (conn == null) {
+                        return;
                     }
+                    handleResponse(conn, callback);
                 } catch (Exception e) {
-                    Log.e(TAG, "WhisperAPI: Exception - " + e.getClass().getName() + ": " + e.getMessage(), e);
-                    e.printStackTrace();
-                    callback.onError("Error: " + e.getClass().getSimpleName() + " - " + e.getMessage());
+                    if (upload.isCancelled()) {
+                        return;
+                    }
+                    Log.e(TAG, "WhisperAPI: Streaming exception - " + e.getClass().getName() + ": " + e.getMessage());
+                    callback.onError(describe(e));
                 }
             }
-        }).start();
+        }, "StreamUpload").start();
+        return upload;
     }
 
-    private static String extractTextFromJSON(String json) {
-        // Simple JSON parsing to extract "text" field
-        try {
-            int textIndex = json.indexOf("\"text\"");
-            if (textIndex == -1) return null;
+    private static void streamPcm(PcmRingBuffer.Reader reader, final OutputStream out, StreamingUpload upload,
+                                  int sampleRate, boolean trimSilence) throws IOException {
+        short[] samples = new short[STREAM_CHUNK_BYTES / 2];
+        final byte[] bytes = new byte[STREAM_CHUNK_BYTES];
+        SilenceTrimmer trimmer = null;
+        if (trimSilence) {
+            trimmer = new SilenceTrimmer(sampleRate, STREAM_TRIM_PAD_MS, STREAM_TRIM_MAX_PAUSE_MS, new SilenceTrimmer.Sink() {
+                @Override
+                public void write(short[] src, int offset, int length) throws IOException {
+                    WavFormat.writeSamples(out, src, offset, length, bytes);
+                }
+            });
+        }
+
+        int count;
+        while ((count = reader.read(samples, 0, samples.length, STREAM_POLL_MS)) != -1) {
+            if (upload.isCancelled()) {
+                return;
+            }
+            if (reader.getDroppedSamples() > 0) {
+                throw new IOException("Upload fell behind recording");
+            }
+            if (count == 0) {
+                continue;
+            }
+            if (trimmer != null) {
+                trimmer.write(samples, 0, count);
+            } else {
+                WavFormat.writeSamples(out, samples, 0, count, bytes);
+            }
+        }
+        if (trimmer != null) {
+            trimmer.finish();
+        }
+    }
+
+    /**
+     * MIME type for the multipart file part, from the recorder's file extension.
+     */
+    public static String contentTypeFor(File audioFile) {
+        String name = audioFile.getName();
+        if (name.endsWith(".ogg")) return "audio/ogg";
+        if (name.endsWith(".m4a")) return "audio/mp4";
+        if (name.endsWith(".wav")) return "audio/wav";
+        if (name.endsWith(".webm")) return "audio/webm";
+        return "audio/mpeg";
+    }
+
+    /**
+     * Whether an error passed to a {@link TranscriptionCallback} came from something a
+     * later attempt can get past: no connection, a timeout, a dropped connection, a
+     * server error or throttling. The verdict is taken where the failure happened, from
+     * the exception type or status code, and carried as {@link #ERROR_TRANSIENT}.
+     */
+    public static boolean isTransient(String error) {
+        return error != null && error.startsWith(ERROR_TRANSIENT);
+    }
+
+    private static String describe(Exception e) {
+        return (isTransient(e) ? ERROR_TRANSIENT : "Error: ") + e.getClass().getSimpleName() + " - " + e.getMessage();
+    }
 
-            int colonIndex = json.indexOf(":", textIndex);
-            int startQuote = json.indexOf("\"", colonIndex);
-            int endQuote = json.indexOf("\"", startQuote + 1);
+    // Failures of the connection, not of the request or the audio: a missing file,
+    // a malformed response or a rejected certificate would fail the same way again
+    private static boolean isTransient(Exception e) {
+        return e instanceof SocketException // refused, reset, no route
+                || e instanceof SocketTimeoutException
+                || e instanceof UnknownHostException // offline, or DNS down
+                || e instanceof SSLHandshakeException // often a captive portal
+                || e instanceof EOFException // closed mid-response
+                || e instanceof RequestPolicy.RetryableStatusException;
+    }
+
+    public static String getConfiguredPrompt(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return prefs.getString(KEY_TRANSCRIPTION_PROMPT, "");
+    }
+
+    // Only where something can show partials; the wrapper in transcribeAudio forwards them
+    private static void addStreamField(MultipartBody body, SharedPreferences prefs, TranscriptionCallback callback) {
+        if (callback instanceof StreamingTranscriptionCallback && prefs.getBoolean(KEY_STREAM_RESULTS, false)) {
+            body.addField("stream", "true");
+        }
+    }
+
+    private static int awaitStatus(HttpURLConnection conn) throws IOException {
+        // Everything sent; the time to the status line is server processing plus one round trip
+        long traceWait = LatencyTracer.begin();
+        int responseCode = conn.getResponseCode();
+        LatencyTracer.end("server wait", traceWait);
+        Log.d(TAG, "WhisperAPI: Response code=" + responseCode);
+        return responseCode;
+    }
+
+    private static void handleResponse(HttpURLConnection conn, TranscriptionCallback callback) throws IOException {
+        int responseCode = conn.getResponseCode();
+        String contentType = conn.getContentType();
+        if (responseCode == HttpURLConnection.HTTP_OK && contentType != null
+                && contentType.startsWith("text/event-stream")) {
+            handleStream(conn, callback);
+        } else if (responseCode == HttpURLConnection.HTTP_OK) {
+            long traceParse = LatencyTracer.begin();
+            InputStream in = conn.getInputStream();
+            TranscriptionResponse response;
+            try {
+                response = TranscriptionResponse.parse(in);
+            } finally {
+                // To the end, so the connection can be reused
+                ConnectionManager.drain(in);
+            }
+            String text = response.getText();
+            LatencyTracer.end("parse", traceParse);
+            if (response.getLanguage() != null) {
+                Log.d(TAG, "WhisperAPI: Language=" + response.getLanguage() + ", "
+                        + response.getSegments().size() + " segments");
+            }
+
+            Log.d(TAG, "WhisperAPI: Extracted text=" + (text != null ? text : "NULL"));
 
-            if (startQuote != -1 && endQuote != -1) {
-                return json.substring(startQuote + 1, endQuote);
+            if (text != null && !text.isEmpty()) {
+                callback.onSuccess(text);
+            } else {
+                Log.e(TAG, "WhisperAPI: No transcription found in response");
+                callback.onError(ERROR_NO_TRANSCRIPTION);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        } else {
+            // Read error response
+            BufferedReader errorReader = new BufferedReader(new InputStreamReader(conn.getErrorStream()));
+            StringBuilder errorResponse = new StringBuilder();
+            String errorLine;
+            while ((errorLine = errorReader.readLine()) != null) {
+                errorResponse.append(errorLine);
+            }
+            errorReader.close();
+
+            String errorMsg = errorResponse.toString();
+            Log.e(TAG, "WhisperAPI: HTTP Error " + responseCode + ": " + errorMsg);
+            // A bad key (401/403) or a rejected file (400/413) fails the same way every time
+            boolean transientStatus = RequestPolicy.isRetryable(responseCode)
+                    || responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT;
+            callback.onError((transientStatus ? ERROR_TRANSIENT : "") + "HTTP Error " + responseCode + ": " + errorMsg);
+        }
+    }
+
+    private static void handleStream(HttpURLConnection conn, TranscriptionCallback callback) throws IOException {
+        long traceFirst = LatencyTracer.begin();
+        StringBuilder text = new StringBuilder();
+        String finalText = null;
+        InputStream in = conn.getInputStream();
+        try {
+            ServerSentEvents events = new ServerSentEvents(in);
+            String data;
+            while ((data = events.next()) != null) {
+                if (data.equals("[DONE]")) break;
+                TranscriptionResponse.StreamEvent event = TranscriptionResponse.parseEvent(data);
+                if (event.isDelta() && event.getDelta() != null && !event.getDelta().isEmpty()) {
+                    if (text.length() == 0) {
+                        LatencyTracer.end("first words", traceFirst);
+                    }
+                    text.append(event.getDelta());
+                    if (callback instanceof StreamingTranscriptionCallback) {
+                        ((StreamingTranscriptionCallback) callback).onPartial(text.toString());
+                    }
+                } else if (event.isDone()) {
+                    finalText = event.getText();
+                    break;
+                }
+            }
+        } finally {
+            ConnectionManager.drain(in);
+        }
+
+        // The done event is authoritative; the deltas are enough if a server omits it
+        String transcription = (finalText != null ? finalText : text.toString()).trim();
+        Log.d(TAG, "WhisperAPI: Streamed text=" + transcription);
+        if (!transcription.isEmpty()) {
+            callback.onSuccess(transcription);
+        } else {
+            callback.onError(ERROR_NO_TRANSCRIPTION);
         }
-        return null;
     }
 }